@@ -1,11 +1,10 @@
 package com.sanderbos.simplephotowebserver;
 
-import android.app.Activity;
-import android.text.TextUtils;
-
 import com.sanderbos.simplephotowebserver.cache.CacheDirectoryEntry;
 import com.sanderbos.simplephotowebserver.cache.CacheFileEntry;
+import com.sanderbos.simplephotowebserver.platform.ResourceProvider;
 import com.sanderbos.simplephotowebserver.util.ImageOrientation;
+import com.sanderbos.simplephotowebserver.util.ThumbnailSize;
 
 import java.text.MessageFormat;
 import java.util.List;
@@ -43,6 +42,24 @@ public class HtmlTemplateProcessor {
      */
     public static final String PARAMETER_APPLY_ROTATION = "rotation";
 
+    /**
+     * Parameter used in image source URLs to indicate the original image should be served with
+     * this rotation in its orientation tag, for the browser to apply.
+     */
+    public static final String PARAMETER_ORIENTATION = "orientation";
+
+    /**
+     * Parameter used in thumbnail URLs to select the size of the thumbnail (the name of a
+     * ThumbnailSize value, the default size when absent).
+     */
+    public static final String PARAMETER_SIZE = "size";
+
+    /**
+     * Parameter used in image, icon and css URLs to carry a version token of the content. URLs with
+     * a current version token can be cached by browsers forever.
+     */
+    public static final String PARAMETER_VERSION = "v";
+
     /**
      * Url directory page parameter name.
      */
@@ -93,6 +110,11 @@ public class HtmlTemplateProcessor {
      */
     private static final String KEYWORD_URI = "uri";
 
+    /**
+     * Template keyword for the version token of the in-app resources (css, icons).
+     */
+    private static final String KEYWORD_RESOURCE_VERSION = "resourceversion";
+
     /**
      * The number of thumbnail rows.
      */
@@ -109,14 +131,21 @@ public class HtmlTemplateProcessor {
     public static final int THUMBNAIL_PAGE_SIZE = NUM_THUMBNAIL_ROWS * NUM_THUMBNAIL_COLUMNS;
 
     /**
-     * This thummbnail size should match the width specified in html_fragments.xml image-thumbnail css class.
+     * The width at which thumbnails are displayed (in css pixels), this should match the width specified
+     * in html_fragments.xml image-thumbnail css class. Larger sizes are offered for high density screens.
+     */
+    public static final int THUMBNAIL_WIDTH = ThumbnailSize.DEFAULT.getWidth();
+
+    /**
+     * Whether embedded rotations are applied by the browser (the original image is served, with
+     * css to apply its orientation tag), instead of by converting the image on the server.
      */
-    public static final int THUMBNAIL_WIDTH = 40;
+    public static final boolean ROTATE_IN_BROWSER = true;
 
     /**
-     * A context object for the template.
+     * The resources for the template.
      */
-    private Activity context;
+    private ResourceProvider resourceProvider;
 
     /**
      * The running content of the template, stored without a header and footer.
@@ -136,13 +165,13 @@ public class HtmlTemplateProcessor {
     /**
      * Constructor, starts a new empty document.
      *
-     * @param context Context for the HtmlTemplate object, used amongst other things to resolve string resources.
+     * @param resourceProvider Resources for the HtmlTemplate object, used to resolve string resources.
      */
-    public HtmlTemplateProcessor(Activity context) {
+    public HtmlTemplateProcessor(ResourceProvider resourceProvider) {
         this.content = new StringBuilder();
-        this.context = context;
+        this.resourceProvider = resourceProvider;
 
-        this.title = getResourceText(R.string.title_regular);
+        this.title = getResourceText("title_regular");
     }
 
     /**
@@ -169,7 +198,7 @@ public class HtmlTemplateProcessor {
      * @param uri The uri to use in the 404 title.
      */
     public void set404Title(String uri) {
-        String titleTemplate = getResourceText(R.string.title_404);
+        String titleTemplate = getResourceText("title_404");
         setTitle(replaceTemplateVariable(titleTemplate, KEYWORD_URI, uri));
     }
 
@@ -179,7 +208,7 @@ public class HtmlTemplateProcessor {
      * @param uri The uri to use in the 500 title.
      */
     public void set500Title(String uri) {
-        String titleTemplate = getResourceText(R.string.title_500);
+        String titleTemplate = getResourceText("title_500");
         setTitle(replaceTemplateVariable(titleTemplate, KEYWORD_URI, uri));
     }
 
@@ -199,16 +228,60 @@ public class HtmlTemplateProcessor {
      */
     public String getHtmlOutput() {
 
-        int templateId = R.string.html_main_template;
+        String templateName = "html_main_template";
         if (useFullscreenTemplate) {
-            templateId = R.string.html_fullscreen_template;
+            templateName = "html_fullscreen_template";
         }
-        String result = getResourceText(templateId);
+        String result = getResourceText(templateName);
         result = replaceTemplateVariable(result, KEYWORD_TITLE, getTitle());
         result = replaceTemplateVariable(result, KEYWORD_CONTENT, content.toString());
+        result = replaceTemplateVariable(result, KEYWORD_RESOURCE_VERSION, getResourceVersionToken());
         return result;
     }
 
+    /**
+     * Create the version token for thumbnail URLs of an image. It changes whenever the image file
+     * changes, or the way thumbnails are rendered changes.
+     *
+     * @param fileEntry The image to create the token for.
+     * @param size      The size of the thumbnail.
+     * @return The version token.
+     */
+    public static String createThumbnailVersionToken(CacheFileEntry fileEntry, ThumbnailSize size) {
+        return Long.toHexString(fileEntry.getLastModificationTimestamp()) + "-" + size.getWidth();
+    }
+
+    /**
+     * Create the version token for photo URLs of an image. It changes whenever the image file
+     * changes, or a different rotation is applied.
+     *
+     * @param fileEntry The image to create the token for.
+     * @param rotation  The rotation applied to the image.
+     * @return The version token.
+     */
+    public static String createPhotoVersionToken(CacheFileEntry fileEntry, ImageOrientation rotation) {
+        return Long.toHexString(fileEntry.getLastModificationTimestamp()) + "-" + rotation.getRotationInDegrees();
+    }
+
+    /**
+     * Create the version token for URLs of in-app resources (css, icons).
+     *
+     * @param resourceVersion The resource version, see ResourceProvider.
+     * @return The version token.
+     */
+    public static String createResourceVersionToken(long resourceVersion) {
+        return Long.toHexString(resourceVersion);
+    }
+
+    /**
+     * Get the version token for URLs of in-app resources.
+     *
+     * @return The version token.
+     */
+    private String getResourceVersionToken() {
+        return createResourceVersionToken(resourceProvider.getResourceVersion());
+    }
+
     /**
      * Generate a directory structure HTML tree.
      *
@@ -291,7 +364,7 @@ public class HtmlTemplateProcessor {
 
         addHtmlContent("<table class='position-block-center'><tr><td>");
         if (thumbnailPageNumber > 0) {
-            String imageTag = createImage(constructTargetURL(ACTION_URL_SHOW_ICON, "previous"), "", getResourceText(R.string.html_text_previous_page));
+            String imageTag = createImage(constructIconURL("previous"), "", getResourceText("html_text_previous_page"));
             addHtmlContent(createHyperLink(imageTag, constructTargetURL(ACTION_URL_SHOW_DIRECTORY_PAGE, cachedDirectoryEntry.getFullPath(), thumbnailPageNumber - 1), null));
         }
         addHtmlContent("</td><td>");
@@ -332,7 +405,7 @@ public class HtmlTemplateProcessor {
         addHtmlContent("</td><td>");
         if (index < fileEntries.size()) {
             // There are more entries beyond the ones now shown.
-            String imageTag = createImage(constructTargetURL(ACTION_URL_SHOW_ICON, "next"), "", getResourceText(R.string.html_text_next_page));
+            String imageTag = createImage(constructIconURL("next"), "", getResourceText("html_text_next_page"));
             addHtmlContent(createHyperLink(imageTag, constructTargetURL(ACTION_URL_SHOW_DIRECTORY_PAGE, cachedDirectoryEntry.getFullPath(), thumbnailPageNumber + 1), null));
         }
         addHtmlContent("</td></tr></table>");
@@ -343,7 +416,7 @@ public class HtmlTemplateProcessor {
     /**
      * Add the image HTML for an image, along with its buttons.
      *
-     * @param imagePath                  The full path of an image to show.
+     * @param imageEntry                 The image to show.
      * @param previousImagePath          The full path of a previous image in the list, if such an image exists.
      * @param nextImagePath              The full path of a next image in the list, if such an image exists.
      * @param inFullscreenMode           Whether we are currently using full screen mode.
@@ -351,11 +424,12 @@ public class HtmlTemplateProcessor {
      *                                   (for performance, only used when inFullscreenMode is true)
      * @param rotationParameter          If the image contains an embedded rotation, apply that to the image source URL.
      */
-    public void addMainImageHtml(String imagePath, String previousImagePath, String nextImagePath, boolean inFullscreenMode, boolean isImageOrientationPortrait,
+    public void addMainImageHtml(CacheFileEntry imageEntry, String previousImagePath, String nextImagePath, boolean inFullscreenMode, boolean isImageOrientationPortrait,
                                  ImageOrientation rotationParameter) {
+        String imagePath = imageEntry.getFullPath();
         addHtmlContent("<table class='position-block-center'><tr><td>");
         if (previousImagePath != null) {
-            String previousImageTag = createImage(constructTargetURL(ACTION_URL_SHOW_ICON, "previous"), "", getResourceText(R.string.html_text_previous_image));
+            String previousImageTag = createImage(constructIconURL("previous"), "", getResourceText("html_text_previous_image"));
             addHtmlContent(createHyperLink(previousImageTag, constructTargetURLForFullScreen(ACTION_URL_SHOW_PHOTO_PAGE, previousImagePath, inFullscreenMode), null));
         }
         addHtmlContent("</td><td>");
@@ -369,7 +443,12 @@ public class HtmlTemplateProcessor {
                 imageCssClass = "image-main-fullscreen";
             }
         }
-        String imageSrcUrl = constructImageSrcURL(imagePath, rotationParameter);
+        boolean rotateInBrowser = ROTATE_IN_BROWSER && rotationParameter != null && rotationParameter != ImageOrientation.ROTATE_NONE;
+        if (rotateInBrowser) {
+            // The browser applies the orientation tag, or rotates the image with a transform if it cannot.
+            imageCssClass += MessageFormat.format(" image-oriented image-oriented-{0,number,#}", rotationParameter.getRotationInDegrees());
+        }
+        String imageSrcUrl = constructImageSrcURL(imageEntry, rotationParameter, rotateInBrowser);
         String imageTag = createImage(imageSrcUrl, imageCssClass, null);
         addHtmlContent(imageTag);
 
@@ -379,20 +458,20 @@ public class HtmlTemplateProcessor {
         if (inFullscreenMode) {
             // If in fullscreen mode now, offer option to switch out of it.
             fullscreenIconName = "exit_fullscreen";
-            fullscreenAlt = getResourceText(R.string.html_text_exit_fullscreen);
+            fullscreenAlt = getResourceText("html_text_exit_fullscreen");
         } else {
             fullscreenIconName = "fullscreen";
-            fullscreenAlt = getResourceText(R.string.html_text_fullscreen);
+            fullscreenAlt = getResourceText("html_text_fullscreen");
         }
-        String fullScreenTag = createImage(constructTargetURL(ACTION_URL_SHOW_ICON, fullscreenIconName), "image-fullscreen-icon", fullscreenAlt);
+        String fullScreenTag = createImage(constructIconURL(fullscreenIconName), "image-fullscreen-icon", fullscreenAlt);
         addHtmlContent(createHyperLink(fullScreenTag, constructTargetURLForFullScreen(ACTION_URL_SHOW_PHOTO_PAGE, imagePath, !inFullscreenMode), null));
 
-        String downloadTag = createImage(constructTargetURL(ACTION_URL_SHOW_ICON, "download"), "image-download-icon", getResourceText(R.string.html_text_download));
+        String downloadTag = createImage(constructIconURL("download"), "image-download-icon", getResourceText("html_text_download"));
         addHtmlContent(createHyperLink(downloadTag, constructDownloadURL(ACTION_URL_DOWNLOAD_FILE, imagePath), null));
 
         addHtmlContent("</td><td>");
         if (nextImagePath != null) {
-            String nextImageTag = createImage(constructTargetURL(ACTION_URL_SHOW_ICON, "next"), "", getResourceText(R.string.html_text_next_image));
+            String nextImageTag = createImage(constructIconURL("next"), "", getResourceText("html_text_next_image"));
             addHtmlContent(createHyperLink(nextImageTag, constructTargetURLForFullScreen(ACTION_URL_SHOW_PHOTO_PAGE, nextImagePath, inFullscreenMode), null));
         }
         addHtmlContent("</td></tr></table>");
@@ -415,7 +494,16 @@ public class HtmlTemplateProcessor {
         } else {
             addHtmlContent("<div class='thumbnail-cell-div'>");
         }
-        String imageTag = createImage(constructTargetURL(ACTION_URL_SHOW_THUMBNAIL, fileEntry.getFullPath()), "image-thumbnail", null);
+        // The browser picks the smallest size that is sharp at the pixel density of its screen.
+        StringBuilder srcSet = new StringBuilder();
+        for (ThumbnailSize size : ThumbnailSize.values()) {
+            if (srcSet.length() > 0) {
+                srcSet.append(", ");
+            }
+            // Spaces separate the url from its width in the source set, so the url must not contain them.
+            srcSet.append(constructThumbnailURL(fileEntry, size).replace(" ", "%20")).append(' ').append(size.getWidth()).append('w');
+        }
+        String imageTag = createImage(constructThumbnailURL(fileEntry, ThumbnailSize.DEFAULT), srcSet.toString(), THUMBNAIL_WIDTH + "px", "image-thumbnail", null);
         String imageTagWithHyperLink = createHyperLink(imageTag, constructTargetURL(ACTION_URL_SHOW_PHOTO_PAGE, fileEntry.getFullPath()), null);
         addHtmlContent(imageTagWithHyperLink);
         addHtmlContent("</div>");
@@ -434,22 +522,48 @@ public class HtmlTemplateProcessor {
     }
 
     /**
-     * Construct an action URL string, of the format showPhoto?path=pathParameterValue&rotation=degrees.
-     * The rotation parameter is optional, only if a deviating rotation paramter is present.
+     * Construct a thumbnail URL string, of the format showThumbnail?path=pathParameterValue&size=name&v=version.
      *
-     * @param pathParameterValue The value to use for the path parameter.
-     * @param rotationParameter  The rotation of the image, if known.
+     * @param imageEntry The image to show the thumbnail of.
+     * @param size       The size of the thumbnail.
+     * @return The constructed url string.
+     */
+    private String constructThumbnailURL(CacheFileEntry imageEntry, ThumbnailSize size) {
+        String url = constructTargetURL(ACTION_URL_SHOW_THUMBNAIL, imageEntry.getFullPath(), PARAMETER_SIZE, size.getName());
+        return MessageFormat.format("{0}&{1}={2}", url, PARAMETER_VERSION, createThumbnailVersionToken(imageEntry, size));
+    }
+
+    /**
+     * Construct an action URL string, of the format showPhoto?path=pathParameterValue&rotation=degrees&v=version.
+     * The rotation parameter is optional, only if a deviating rotation paramter is present (it is
+     * replaced by the orientation parameter when the browser applies the rotation).
+     *
+     * @param imageEntry        The image to show.
+     * @param rotationParameter The rotation of the image, if known.
+     * @param rotateInBrowser   Whether the browser applies the rotation.
      * @return The constructed url string.
      */
-    private String constructImageSrcURL(String pathParameterValue, ImageOrientation rotationParameter) {
+    private String constructImageSrcURL(CacheFileEntry imageEntry, ImageOrientation rotationParameter, boolean rotateInBrowser) {
         boolean addRotationParamter = rotationParameter != null && rotationParameter != ImageOrientation.ROTATE_NONE;
         if (addRotationParamter) {
-            return constructTargetURL(ACTION_URL_SHOW_PHOTO, pathParameterValue, PARAMETER_APPLY_ROTATION, String.valueOf(rotationParameter.getRotationInDegrees()));
+            String parameterName = rotateInBrowser ? PARAMETER_ORIENTATION : PARAMETER_APPLY_ROTATION;
+            String url = constructTargetURL(ACTION_URL_SHOW_PHOTO, imageEntry.getFullPath(), parameterName, String.valueOf(rotationParameter.getRotationInDegrees()));
+            return MessageFormat.format("{0}&{1}={2}", url, PARAMETER_VERSION, createPhotoVersionToken(imageEntry, rotationParameter));
         } else {
-            return constructTargetURL(ACTION_URL_SHOW_PHOTO, pathParameterValue);
+            return constructTargetURL(ACTION_URL_SHOW_PHOTO, imageEntry.getFullPath(), PARAMETER_VERSION, createPhotoVersionToken(imageEntry, ImageOrientation.ROTATE_NONE));
         }
     }
 
+    /**
+     * Construct an icon URL string, of the format showIcon?path=iconName&v=version.
+     *
+     * @param iconName The name of the icon.
+     * @return The constructed url string.
+     */
+    private String constructIconURL(String iconName) {
+        return constructTargetURL(ACTION_URL_SHOW_ICON, iconName, PARAMETER_VERSION, getResourceVersionToken());
+    }
+
     /**
      * Construct an action URL string, of the format action?path=pathParameterValue, optionally
      * with a second fullscreen=yes query parameter.
@@ -534,11 +648,28 @@ public class HtmlTemplateProcessor {
      * @return The text of an image.
      */
     private String createImage(String sourceURL, String cssClass, String toolTipText) {
+        return createImage(sourceURL, null, null, cssClass, toolTipText);
+    }
+
+    /**
+     * Construct an img tag with alternative sources, of which the browser picks one.
+     *
+     * @param sourceURL   The url to use in the source (for browsers without support for alternatives).
+     * @param srcSet      Optional list of alternative urls with their widths.
+     * @param sizes       The display width of the image, used to pick from the alternatives.
+     * @param cssClass    Optional css class for use with the image tag.
+     * @param toolTipText Optional tooltip (title) attribute text.
+     * @return The text of an image.
+     */
+    private String createImage(String sourceURL, String srcSet, String sizes, String cssClass, String toolTipText) {
         String result = MessageFormat.format("<img src=\"{0}\"", sourceURL);
-        if (!TextUtils.isEmpty(cssClass)) {
+        if (srcSet != null && srcSet.length() > 0) {
+            result += MessageFormat.format(" srcset=\"{0}\" sizes=\"{1}\"", srcSet, sizes);
+        }
+        if (cssClass != null && cssClass.length() > 0) {
             result += MessageFormat.format(" class=\"{0}\"", cssClass);
         }
-        if (!TextUtils.isEmpty(toolTipText)) {
+        if (toolTipText != null && toolTipText.length() > 0) {
             result += MessageFormat.format(" title=\"{0}\"", toolTipText);
         }
         result += "/>";
@@ -549,7 +680,7 @@ public class HtmlTemplateProcessor {
      * Add a separator to the content.
      */
     public void addSeparator() {
-        addHtmlContent(getResourceText(R.string.html_separator));
+        addHtmlContent(getResourceText("html_separator"));
     }
 
     /**
@@ -565,11 +696,11 @@ public class HtmlTemplateProcessor {
     /**
      * Utility method to get a resource string text.
      *
-     * @param resourceId The resource to resolve (this should be a valid identifier).
+     * @param resourceName The name of the resource to resolve (this should be a valid name).
      * @return The resolved string (this method does not expect an error to occur).
      */
-    private String getResourceText(int resourceId) {
-        return context.getResources().getText(resourceId).toString();
+    private String getResourceText(String resourceName) {
+        return resourceProvider.getText(resourceName);
     }
 
     /**
@@ -647,11 +778,11 @@ public class HtmlTemplateProcessor {
         String imageFile;
         String altText;
         if (currentDisplayState.getCurrentDirectoryPath() == null || currentDisplayState.isForceShowDirectoryStructure()) {
-            imageFile = "/showIcon?path=collapse";
-            altText = getResourceText(R.string.html_text_collapse_folder_selection);
+            imageFile = constructIconURL("collapse");
+            altText = getResourceText("html_text_collapse_folder_selection");
         } else {
-            imageFile = "/showIcon?path=expand";
-            altText = getResourceText(R.string.html_text_expand_folder_selection);
+            imageFile = constructIconURL("expand");
+            altText = getResourceText("html_text_expand_folder_selection");
             hyperLinkURL.append("&" + PARAMETER_FORCE_SHOW_DIRECTORY + "=true");
         }
         addHtmlContent(createHyperLink(createImage(imageFile, "", altText), hyperLinkURL.toString(), ""));
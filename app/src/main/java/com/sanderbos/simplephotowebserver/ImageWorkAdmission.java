@@ -0,0 +1,317 @@
+package com.sanderbos.simplephotowebserver;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Admission control for expensive image work (generating thumbnails and rotated images). Only a
+ * few image conversions are executed at the same time, so every request that is admitted waits for
+ * its share of the work ahead of it. This class tracks the work in progress per type, and
+ * estimates the wait for new work from the measured conversion times. Work that would wait too long is rejected right away,
+ * instead of piling up and holding worker threads that cheap requests (cached data, pages, icons)
+ * need to keep moving.
+ * <br>
+ * Admitted work is executed in deficit round robin order between clients: every client gets
+ * the same share of conversion time (measured in the estimated conversion times), so one client
+ * scrolling through a large directory does not hold up the thumbnails of another.
+ */
+public class ImageWorkAdmission {
+
+    /**
+     * The types of image work, with their admission limits.
+     */
+    public enum WorkType {
+        THUMBNAIL(12, 6000, 500),
+        ROTATION(3, 8000, 1500);
+
+        /**
+         * Maximum number of requests of this type waiting or in progress.
+         */
+        private final int maximumQueueDepth;
+
+        /**
+         * Maximum estimated wait for new work of this type (in milliseconds).
+         */
+        private final long maximumWaitMillis;
+
+        /**
+         * Estimated conversion time to start with, before anything has been measured (in milliseconds).
+         */
+        private final long initialServiceMillis;
+
+        WorkType(int maximumQueueDepth, long maximumWaitMillis, long initialServiceMillis) {
+            this.maximumQueueDepth = maximumQueueDepth;
+            this.maximumWaitMillis = maximumWaitMillis;
+            this.initialServiceMillis = initialServiceMillis;
+        }
+    }
+
+    /**
+     * Weight of a new measurement in the moving average of the conversion time.
+     */
+    private static final double SERVICE_TIME_SMOOTHING = 0.2;
+
+    /**
+     * Conversion time a client is granted each round of the deficit round robin (in milliseconds).
+     */
+    private static final double ROUND_ROBIN_QUANTUM = 500;
+
+    /**
+     * Limits for the Retry-After value (in seconds).
+     */
+    private static final int MINIMUM_RETRY_AFTER_SECONDS = 1;
+    private static final int MAXIMUM_RETRY_AFTER_SECONDS = 30;
+
+    /**
+     * Maximum number of image work requests in progress of all types together, so that worker
+     * threads are left for other requests.
+     */
+    private final int maximumTotalInProgress;
+
+    /**
+     * Maximum number of image conversions executed at the same time.
+     */
+    private final int maximumRunning;
+
+    /**
+     * Per work type: the requests waiting or in progress, the moving average of the conversion
+     * time, and the counts of admitted and rejected requests. All guarded by this.
+     */
+    private final int[] inProgress = new int[WorkType.values().length];
+    private final double[] averageServiceMillis = new double[WorkType.values().length];
+    private final long[] admittedCount = new long[WorkType.values().length];
+    private final long[] rejectedCount = new long[WorkType.values().length];
+
+    /**
+     * Clients with admitted work waiting for its turn, by client, and in round robin order (the
+     * first client is the one whose turn it is). Guarded by this.
+     */
+    private final Map<String, ClientQueue> clientQueues = new HashMap<>();
+    private final LinkedList<ClientQueue> roundRobin = new LinkedList<>();
+
+    /**
+     * The number of conversions being executed. Guarded by this.
+     */
+    private int runningCount;
+
+    /**
+     * Constructor.
+     *
+     * @param maximumTotalInProgress Maximum number of image work requests waiting or in progress
+     *                               together (should be below the number of worker threads).
+     * @param maximumRunning         Maximum number of image conversions executed at the same time.
+     */
+    public ImageWorkAdmission(int maximumTotalInProgress, int maximumRunning) {
+        this.maximumTotalInProgress = maximumTotalInProgress;
+        this.maximumRunning = maximumRunning;
+        for (WorkType workType : WorkType.values()) {
+            averageServiceMillis[workType.ordinal()] = workType.initialServiceMillis;
+        }
+    }
+
+    /**
+     * Admit new image work, or reject it in case it would have to wait too long. Admitted work
+     * waits for its turn before this method returns.
+     *
+     * @param workType The type of work to perform.
+     * @param client   The client the work is for (its address).
+     * @return A ticket to pass to {@link #release(Ticket)} once the work is done (also in case it
+     * failed).
+     * @throws RejectedException In case the work is not admitted.
+     */
+    public synchronized Ticket admit(WorkType workType, String client) throws RejectedException {
+        int index = workType.ordinal();
+        long estimatedWaitMillis = getEstimatedWaitMillis();
+        if (inProgress[index] >= workType.maximumQueueDepth || getTotalInProgress() >= maximumTotalInProgress
+                || estimatedWaitMillis > workType.maximumWaitMillis) {
+            rejectedCount[index]++;
+            throw new RejectedException(workType, inProgress[index], estimatedWaitMillis);
+        }
+        inProgress[index]++;
+        admittedCount[index]++;
+
+        Ticket ticket = new Ticket(workType);
+        ClientQueue clientQueue = clientQueues.get(client);
+        if (clientQueue == null) {
+            clientQueue = new ClientQueue(client);
+            clientQueues.put(client, clientQueue);
+            roundRobin.add(clientQueue);
+        }
+        clientQueue.tickets.add(ticket);
+        startNextTicket();
+
+        boolean interrupted = false;
+        while (!ticket.started) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // The work is admitted, it is done once it has started.
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return ticket;
+    }
+
+    /**
+     * Register that admitted work is done, learn from the time it took, and start the next work.
+     *
+     * @param ticket The ticket returned on admission.
+     */
+    public synchronized void release(Ticket ticket) {
+        int index = ticket.workType.ordinal();
+        inProgress[index]--;
+        long serviceMillis = System.currentTimeMillis() - ticket.startTime;
+        averageServiceMillis[index] += SERVICE_TIME_SMOOTHING * (serviceMillis - averageServiceMillis[index]);
+        runningCount--;
+        startNextTicket();
+    }
+
+    /**
+     * Start waiting work, as long as fewer than the maximum conversions are executed, in deficit
+     * round robin order: when it is the turn of a client it gets a quantum of conversion time, and
+     * it can start work as long as its saved up conversion time covers the estimated conversion
+     * time of the work.
+     */
+    private void startNextTicket() {
+        while (runningCount < maximumRunning && !roundRobin.isEmpty()) {
+            ClientQueue clientQueue = roundRobin.getFirst();
+            Ticket ticket = clientQueue.tickets.peek();
+            if (ticket == null) {
+                roundRobin.removeFirst();
+                clientQueues.remove(clientQueue.client);
+                continue;
+            }
+            if (!clientQueue.hadQuantum) {
+                clientQueue.deficit += ROUND_ROBIN_QUANTUM;
+                clientQueue.hadQuantum = true;
+            }
+            double cost = averageServiceMillis[ticket.workType.ordinal()];
+            if (clientQueue.deficit >= cost) {
+                clientQueue.tickets.poll();
+                clientQueue.deficit -= cost;
+                if (clientQueue.tickets.isEmpty()) {
+                    // Time is not saved up while there is no work.
+                    roundRobin.removeFirst();
+                    clientQueues.remove(clientQueue.client);
+                }
+                ticket.startTime = System.currentTimeMillis();
+                ticket.started = true;
+                runningCount++;
+                notifyAll();
+                continue;
+            }
+            // Not enough for this work, it is the next client's turn.
+            clientQueue.hadQuantum = false;
+            roundRobin.addLast(roundRobin.removeFirst());
+        }
+    }
+
+    /**
+     * Estimate how long new work would wait: all work in progress is executed before it, divided
+     * over the conversions executed at the same time.
+     *
+     * @return The estimated wait (in milliseconds).
+     */
+    public synchronized long getEstimatedWaitMillis() {
+        double result = 0;
+        for (int index = 0; index < inProgress.length; index++) {
+            result += inProgress[index] * averageServiceMillis[index];
+        }
+        return (long) (result / maximumRunning);
+    }
+
+    /**
+     * Get a summary of the admission statistics, for logging.
+     *
+     * @return Per work type the work in progress, average conversion time, and admitted and
+     * rejected counts.
+     */
+    public synchronized String getStatistics() {
+        StringBuilder result = new StringBuilder();
+        for (WorkType workType : WorkType.values()) {
+            int index = workType.ordinal();
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(workType.name().toLowerCase()).append(": ").append(inProgress[index]).append(" in progress, ")
+                    .append((long) averageServiceMillis[index]).append("ms average, ").append(admittedCount[index])
+                    .append(" admitted, ").append(rejectedCount[index]).append(" rejected");
+        }
+        result.append(", ").append(clientQueues.size()).append(" clients waiting");
+        return result.toString();
+    }
+
+    private int getTotalInProgress() {
+        int result = 0;
+        for (int count : inProgress) {
+            result += count;
+        }
+        return result;
+    }
+
+    /**
+     * Proof of admission, to be released when the work is done.
+     */
+    public static final class Ticket {
+        private final WorkType workType;
+
+        /**
+         * Whether the work started, and the time it started (in milliseconds), guarded by the
+         * admission object.
+         */
+        private boolean started;
+        private long startTime;
+
+        private Ticket(WorkType workType) {
+            this.workType = workType;
+        }
+    }
+
+    /**
+     * The admitted work of one client, waiting for its turn.
+     */
+    private static final class ClientQueue {
+        private final String client;
+        private final LinkedList<Ticket> tickets = new LinkedList<>();
+
+        /**
+         * Conversion time saved up by the client (in milliseconds).
+         */
+        private double deficit;
+
+        /**
+         * Whether the client got its quantum for its current turn.
+         */
+        private boolean hadQuantum;
+
+        private ClientQueue(String client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * Thrown when image work is not admitted, because the server is too busy.
+     */
+    public static final class RejectedException extends Exception {
+        private final long estimatedWaitMillis;
+
+        private RejectedException(WorkType workType, int inProgress, long estimatedWaitMillis) {
+            super(workType.name().toLowerCase() + " work rejected, " + inProgress + " in progress, estimated wait " + estimatedWaitMillis + "ms");
+            this.estimatedWaitMillis = estimatedWaitMillis;
+        }
+
+        /**
+         * Get the time after which the client may try again.
+         *
+         * @return The estimated wait, in whole seconds (for a Retry-After header).
+         */
+        public int getRetryAfterSeconds() {
+            long seconds = (estimatedWaitMillis + 999) / 1000;
+            return (int) Math.max(MINIMUM_RETRY_AFTER_SECONDS, Math.min(MAXIMUM_RETRY_AFTER_SECONDS, seconds));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.sanderbos.simplephotowebserver;
+
+import com.sanderbos.simplephotowebserver.util.MyLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the image work in progress (thumbnails and rotated images being generated), so
+ * that concurrent requests for the same image data are served by a single conversion. The first
+ * request for a key generates the data, requests for the same key arriving while it is busy wait
+ * for its result (or its failure) instead of converting the same image again.
+ * <br>
+ * Work is removed from the registry as soon as it is done, failed work is not remembered. In case
+ * the request generating the data is cancelled (interrupted), the waiting requests do not fail
+ * with it: one of them takes over and generates the data.
+ */
+public class ImageWorkCoalescer {
+
+    /**
+     * Generates image data, in the thread of the first request for the data.
+     */
+    public interface Generator {
+
+        /**
+         * Generate the image data.
+         *
+         * @return The generated image data.
+         * @throws IOException                          In case the image cannot be converted.
+         * @throws ImageWorkAdmission.RejectedException In case the server is too busy for the conversion.
+         */
+        byte[] generate() throws IOException, ImageWorkAdmission.RejectedException;
+    }
+
+    /**
+     * The work in progress, by key. Guarded by this.
+     */
+    private final Map<String, Work> workInProgress = new HashMap<>();
+
+    /**
+     * Counts of generated data, requests that waited for work in progress, and requests that took
+     * over cancelled work. Guarded by this.
+     */
+    private long generatedCount;
+    private long joinedCount;
+    private long takenOverCount;
+
+    /**
+     * Get image data, generating it unless the same data is already being generated, in which
+     * case this method waits for that work to finish.
+     *
+     * @param key       The key of the image data, must be different for all different data
+     *                  (image path, rendition and rotation).
+     * @param generator The generator of the data, only used in case no work for the key is in progress.
+     *                  It should check the cache first, as the data may have been generated just
+     *                  before this call.
+     * @return The image data.
+     * @throws IOException                          In case the data could not be generated (also
+     *                                              when it was generated for another request).
+     * @throws ImageWorkAdmission.RejectedException In case the server was too busy to generate the data.
+     */
+    public byte[] getImageData(String key, Generator generator) throws IOException, ImageWorkAdmission.RejectedException {
+        boolean takingOver = false;
+        while (true) {
+            Work work;
+            boolean generating;
+            synchronized (this) {
+                work = workInProgress.get(key);
+                generating = work == null;
+                if (generating) {
+                    work = new Work();
+                    workInProgress.put(key, work);
+                    generatedCount++;
+                    if (takingOver) {
+                        takenOverCount++;
+                    }
+                } else {
+                    joinedCount++;
+                }
+            }
+
+            if (generating) {
+                return generate(key, work, generator);
+            }
+            MyLog.debug("Waiting for image work in progress for {0}", key);
+            if (work.awaitCompletion()) {
+                return work.getResult();
+            }
+            // The generating request was cancelled, try again (possibly generating the data here).
+            takingOver = true;
+        }
+    }
+
+    /**
+     * Generate the data for work in progress, and hand the outcome to the requests waiting for it.
+     *
+     * @param key       The key of the work.
+     * @param work      The work, registered under the key.
+     * @param generator The generator of the data.
+     * @return The generated data.
+     * @throws IOException                          In case the data could not be generated.
+     * @throws ImageWorkAdmission.RejectedException In case the server was too busy to generate the data.
+     */
+    private byte[] generate(String key, Work work, Generator generator) throws IOException, ImageWorkAdmission.RejectedException {
+        byte[] result = null;
+        Throwable failure = null;
+        try {
+            result = generator.generate();
+            return result;
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            // Unregister before completing, so waiting requests that take over start new work.
+            synchronized (this) {
+                workInProgress.remove(key);
+            }
+            boolean cancelled = failure instanceof InterruptedIOException || Thread.currentThread().isInterrupted();
+            work.complete(result, failure, cancelled);
+        }
+    }
+
+    /**
+     * Get a summary of the statistics, for logging.
+     *
+     * @return The work in progress, and the counts of generated, joined and taken over work.
+     */
+    public synchronized String getStatistics() {
+        return workInProgress.size() + " in progress, " + generatedCount + " generated, " + joinedCount
+                + " joined, " + takenOverCount + " taken over";
+    }
+
+    /**
+     * Image work in progress, a future for its outcome.
+     */
+    private static final class Work {
+
+        /**
+         * The outcome, guarded by this.
+         */
+        private boolean done;
+        private boolean cancelled;
+        private byte[] result;
+        private Throwable failure;
+
+        private synchronized void complete(byte[] result, Throwable failure, boolean cancelled) {
+            this.result = result;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait for the work to complete.
+         *
+         * @return True in case the work completed (with a result or a failure), false in case it
+         * was cancelled.
+         * @throws InterruptedIOException In case the waiting thread is interrupted.
+         */
+        private synchronized boolean awaitCompletion() throws InterruptedIOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for image work in progress");
+                }
+            }
+            return !cancelled;
+        }
+
+        /**
+         * Get the outcome of completed work.
+         *
+         * @return The generated data.
+         * @throws IOException                          In case the work failed.
+         * @throws ImageWorkAdmission.RejectedException In case the work was not admitted.
+         */
+        private synchronized byte[] getResult() throws IOException, ImageWorkAdmission.RejectedException {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof ImageWorkAdmission.RejectedException) {
+                throw (ImageWorkAdmission.RejectedException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            return result;
+        }
+    }
+}
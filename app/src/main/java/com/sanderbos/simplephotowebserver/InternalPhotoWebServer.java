@@ -1,27 +1,27 @@
 package com.sanderbos.simplephotowebserver;
 
-import android.app.Activity;
-import android.content.Context;
-import android.provider.MediaStore;
-
 import com.sanderbos.simplephotowebserver.cache.CacheDirectoryEntry;
 import com.sanderbos.simplephotowebserver.cache.CacheFileEntry;
 import com.sanderbos.simplephotowebserver.cache.CacheRegistry;
 import com.sanderbos.simplephotowebserver.cache.ImageDataCache;
+import com.sanderbos.simplephotowebserver.platform.MediaIndex;
+import com.sanderbos.simplephotowebserver.platform.ResourceProvider;
+import com.sanderbos.simplephotowebserver.util.ImageHeader;
 import com.sanderbos.simplephotowebserver.util.ImageOrientation;
 import com.sanderbos.simplephotowebserver.util.MediaDirectoryFilter;
-import com.sanderbos.simplephotowebserver.util.MediaStoreUtil;
 import com.sanderbos.simplephotowebserver.util.MyLog;
 import com.sanderbos.simplephotowebserver.util.MyImageUtil;
+import com.sanderbos.simplephotowebserver.util.ThumbnailSize;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -43,9 +43,113 @@ public class InternalPhotoWebServer extends NanoHTTPD {
     private static final String MIME_TYPE_JPEG = "image/jpeg";
 
     /**
-     * The context activity, used to resolve resources.
+     * The maximum number of request processing threads (a browser typically opens about 6
+     * connections to one server, idle threads are stopped after a while).
+     */
+    private static final int WORKER_POOL_MAXIMUM_SIZE = 16;
+
+    /**
+     * The number of extra request processing threads started while requests wait for their
+     * priority class or for other requests of their client, on top of the maximum pool size.
+     */
+    private static final int WORKER_POOL_MAXIMUM_BLOCKED_THREADS = 4;
+
+    /**
+     * The number of connections that can wait for a request processing thread before new
+     * connections are refused.
+     */
+    private static final int WORKER_POOL_QUEUE_CAPACITY = 64;
+
+    /**
+     * Priority classes of requests: pages, style sheet, icons and thumbnails make browsing feel
+     * fast, the full size photo shown on a photo page comes next, and downloads of the original
+     * files last.
      */
-    private Activity context;
+    private static final int PRIORITY_INTERACTIVE = 0;
+    private static final int PRIORITY_PHOTO = 1;
+    private static final int PRIORITY_DOWNLOAD = 2;
+
+    /**
+     * Weights of the priority classes (in the order above). Queued requests get a share of the
+     * free worker threads in proportion to the weight of their class, and the number of requests
+     * served at the same time in a class is limited to its weight relative to the interactive
+     * class (so for downloads 16 * 1 / 8 = 2).
+     */
+    private static final int[] PRIORITY_WEIGHTS = {8, 4, 1};
+
+    /**
+     * Maximum number of open connections. When reached, the connection that has been idle the
+     * longest is closed to make room, so galleries left open on other devices do not lock out
+     * new visitors.
+     */
+    private static final int MAX_CONNECTIONS = 24;
+
+    /**
+     * Time a keep-alive connection may wait for its next request (in milliseconds).
+     */
+    private static final int CONNECTION_IDLE_TIMEOUT = 5000;
+
+    /**
+     * Number of requests after which a connection is closed (a thumbnail page is a few dozen requests).
+     */
+    private static final int MAX_REQUESTS_PER_CONNECTION = 500;
+
+    /**
+     * Time in which a request header must be received once it started (in milliseconds).
+     */
+    private static final int HEADER_READ_TIMEOUT = 10000;
+
+    /**
+     * Number of requests of one client (device) that are served at the same time, so that other
+     * clients keep getting worker threads while one scrolls through a large directory.
+     */
+    private static final int MAX_REQUESTS_PER_CLIENT = 8;
+
+    /**
+     * Bandwidth that clients receiving data at the same time share equally once they together
+     * exceed it (in bytes per second), so a download to one device does not stall the gallery on
+     * another. A single client is not limited. The capacity of the network is not known, this is
+     * about what a typical home Wi-Fi network delivers (32 Mbit/s), so it only applies when the
+     * clients together load the network.
+     */
+    private static final int SHARED_BANDWIDTH = 4 * 1024 * 1024;
+
+    /**
+     * Whether to use the non-blocking selector engine of NanoHTTPD (idle keep-alive connections
+     * then do not hold a worker thread), or the regular thread per connection engine.
+     */
+    private static final boolean USE_SELECTOR_ENGINE = true;
+
+    /**
+     * Maximum number of requests waiting for or performing image conversions together, the
+     * remaining worker threads stay available for requests that do not need a conversion.
+     */
+    private static final int MAX_IMAGE_WORK_IN_PROGRESS = WORKER_POOL_MAXIMUM_SIZE - 4;
+
+    /**
+     * Rendition names used in entity tags, so the tags of the different responses for one file differ.
+     */
+    private static final String RENDITION_THUMBNAIL = "thumbnail";
+    private static final String RENDITION_PHOTO = "photo";
+    private static final String RENDITION_DOWNLOAD = "download";
+    private static final String RENDITION_ORIENTED_PHOTO = "oriented";
+
+    /**
+     * The default CSS content, and the same content gzip compressed. The resource does not change
+     * while the process lives, so it is encoded and compressed only once (guarded by the class lock).
+     */
+    private static byte[] defaultCssData;
+    private static byte[] defaultCssGzipData;
+
+    /**
+     * The resources of the server (templates, css, icons).
+     */
+    private ResourceProvider resourceProvider;
+
+    /**
+     * The index of the media on the device.
+     */
+    private MediaIndex mediaIndex;
 
     /**
      * Registry of cached files and directories.
@@ -57,16 +161,91 @@ public class InternalPhotoWebServer extends NanoHTTPD {
      */
     private List<CacheDirectoryEntry> topLevelDirectories = null;
 
+    /**
+     * The bounded thread pool that handles the connections of this server.
+     */
+    private PriorityAsyncRunner workerPool;
+
+    /**
+     * Admission control for thumbnail generation and rotation, which are rejected with a 503
+     * when the conversions already waiting would take too long.
+     */
+    private ImageWorkAdmission imageWorkAdmission;
+
+    /**
+     * The thumbnails and rotated images being generated, so that concurrent requests for the
+     * same image wait for a single conversion.
+     */
+    private ImageWorkCoalescer imageWorkCoalescer;
+
     /**
      * Constructor.
      *
-     * @param port    The listening port for the web server.
-     * @param context The activity context (the activity must remain valid while the server is active.
+     * @param port             The listening port for the web server.
+     * @param resourceProvider The resources of the server (must remain valid while the server is active).
+     * @param mediaIndex       The index of the media to serve (must remain valid while the server is active).
      */
-    public InternalPhotoWebServer(int port, Activity context) {
+    public InternalPhotoWebServer(int port, ResourceProvider resourceProvider, MediaIndex mediaIndex) {
         super(port);
-        this.context = context;
+        this.resourceProvider = resourceProvider;
+        this.mediaIndex = mediaIndex;
         cacheRegistry = new CacheRegistry();
+        workerPool = new PriorityAsyncRunner(WORKER_POOL_MAXIMUM_SIZE, WORKER_POOL_QUEUE_CAPACITY, PRIORITY_WEIGHTS);
+        workerPool.setMaxBlockedThreads(WORKER_POOL_MAXIMUM_BLOCKED_THREADS);
+        setAsyncRunner(workerPool);
+        imageWorkAdmission = new ImageWorkAdmission(MAX_IMAGE_WORK_IN_PROGRESS, MyImageUtil.getConversionParallelism());
+        imageWorkCoalescer = new ImageWorkCoalescer();
+        setSelectorEngineEnabled(USE_SELECTOR_ENGINE);
+        ConnectionManager connectionManager = getConnectionManager();
+        connectionManager.setMaxConnections(MAX_CONNECTIONS);
+        connectionManager.setIdleTimeout(CONNECTION_IDLE_TIMEOUT);
+        connectionManager.setMaxRequestsPerConnection(MAX_REQUESTS_PER_CONNECTION);
+        connectionManager.setHeaderReadTimeout(HEADER_READ_TIMEOUT);
+        connectionManager.setMaxRequestsPerClient(MAX_REQUESTS_PER_CLIENT);
+        connectionManager.setSharedBandwidth(SHARED_BANDWIDTH);
+    }
+
+    /**
+     * Stop the server, and with it the worker threads.
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        workerPool.shutdown();
+        MyLog.info("Image conversion statistics: {0}", MyImageUtil.getConversionStatistics());
+    }
+
+    /**
+     * Log that a connection was refused because all worker threads are busy, or because too many
+     * connections are open.
+     *
+     * @param socket The connection that is about to be refused.
+     */
+    @Override
+    protected void onConnectionRejected(Socket socket) {
+        ConnectionManager connectionManager = getConnectionManager();
+        MyLog.warning(MessageFormat.format("Refused connection from {0}: {1} workers active, {2} queued, {3} connections open ({4} idle), {5} refused by pool, {6} by connection limit",
+                socket.getInetAddress(), workerPool.getActiveCount(), workerPool.getQueuedCount(), connectionManager.getOpenConnectionCount(),
+                connectionManager.getIdleConnectionCount(), workerPool.getRejectedCount(), connectionManager.getRefusedCount()));
+    }
+
+    /**
+     * Determine the priority class of a request from its route, so that full size downloads do
+     * not hold up browsing.
+     *
+     * @param httpRequest The HTTP request information (only the request line and headers are available).
+     * @return The priority class of the request.
+     */
+    @Override
+    protected int getPriorityClass(IHTTPSession httpRequest) {
+        String uri = httpRequest.getUri();
+        int priorityClass = PRIORITY_INTERACTIVE;
+        if (uri != null && uri.startsWith(HtmlTemplateProcessor.ACTION_URL_DOWNLOAD_FILE)) {
+            priorityClass = PRIORITY_DOWNLOAD;
+        } else if (HtmlTemplateProcessor.ACTION_URL_SHOW_PHOTO.equals(uri)) {
+            priorityClass = PRIORITY_PHOTO;
+        }
+        return priorityClass;
     }
 
     /**
@@ -93,7 +272,7 @@ public class InternalPhotoWebServer extends NanoHTTPD {
         Response response;
         switch (uri) {
             case "/default_style.css":
-                return getDefaultCssReponse();
+                return getDefaultCssReponse(httpRequest);
             case "/about":
                 return getAboutPage();
             case "/":
@@ -133,15 +312,48 @@ public class InternalPhotoWebServer extends NanoHTTPD {
             response = get500Response(httpRequest);
         } else {
             CacheFileEntry cachedFileEntry = getOrCreateCacheFileEntry(imagePath);
+            String rotationParameter = httpRequest.getParms().get(HtmlTemplateProcessor.PARAMETER_APPLY_ROTATION);
+            ImageOrientation rotation = convertRotationParamterStringToImageOrientation(rotationParameter);
+            String rendition = showThumbnail ? RENDITION_THUMBNAIL : (isDownloadAction ? RENDITION_DOWNLOAD : RENDITION_PHOTO);
+            ThumbnailSize thumbnailSize = ThumbnailSize.getThumbnailSizeByName(httpRequest.getParms().get(HtmlTemplateProcessor.PARAMETER_SIZE));
+            if (thumbnailSize == null) {
+                thumbnailSize = ThumbnailSize.DEFAULT;
+            }
+            if (showThumbnail) {
+                rendition += "-" + thumbnailSize.getName();
+            }
+            // Or the rotation is applied by the browser, to the original image with the rotation in its orientation tag.
+            ImageOrientation orientation = convertRotationParamterStringToImageOrientation(
+                    httpRequest.getParms().get(HtmlTemplateProcessor.PARAMETER_ORIENTATION));
+            boolean mustSetOrientation = !showThumbnail && !isDownloadAction && orientation != ImageOrientation.ROTATE_NONE;
+            if (mustSetOrientation) {
+                rotation = orientation;
+                rendition = RENDITION_ORIENTED_PHOTO;
+            }
+            long lastModified = cachedFileEntry.getLastModificationTimestamp();
+            String eTag = createImageETag(cachedFileEntry, rendition, rotation);
+            String versionToken = null;
+            if (showThumbnail) {
+                versionToken = HtmlTemplateProcessor.createThumbnailVersionToken(cachedFileEntry, thumbnailSize);
+            } else if (!isDownloadAction) {
+                versionToken = HtmlTemplateProcessor.createPhotoVersionToken(cachedFileEntry, rotation);
+            }
+            // Check before anything is opened or generated, the browser may already have the data.
+            if (lastModified > 0 && isNotModified(httpRequest, eTag, lastModified)) {
+                response = createNotModifiedResponse(eTag, lastModified);
+                addCacheControlHeader(response, httpRequest, versionToken);
+                return response;
+            }
             try {
                 ResponseDataItem responseDataItem;
-                String rotationParameter = httpRequest.getParms().get(HtmlTemplateProcessor.PARAMETER_APPLY_ROTATION);
-                ImageOrientation rotation = convertRotationParamterStringToImageOrientation(rotationParameter);
                 boolean mustPerformRotation = rotation != ImageOrientation.ROTATE_NONE;
+                String client = httpRequest.getHeaders().get("remote-addr");
                 if (showThumbnail) {
-                    responseDataItem = getResponseDataItemForThumbnail(cachedFileEntry);
+                    responseDataItem = getResponseDataItemForThumbnail(cachedFileEntry, thumbnailSize, client);
+                } else if (mustSetOrientation) {
+                    responseDataItem = getResponseDataItemForImageWithOrientation(cachedFileEntry, orientation, client);
                 } else if (mustPerformRotation) {
-                    responseDataItem = getResponseDataItemForImageWithRotation(cachedFileEntry, rotation);
+                    responseDataItem = getResponseDataItemForImageWithRotation(cachedFileEntry, rotation, client);
                 } else {
                     responseDataItem = getResponseDataItemForImage(cachedFileEntry);
                 }
@@ -150,17 +362,125 @@ public class InternalPhotoWebServer extends NanoHTTPD {
                 if (isDownloadAction) {
                     mimeType = "application/octet-stream";
                 }
-                response = new Response(Response.Status.OK, mimeType, responseDataItem.getStreamToServe());
+                if (responseDataItem.getFileToServe() != null) {
+                    response = new Response(Response.Status.OK, mimeType, responseDataItem.getFileToServe());
+                } else {
+                    response = new Response(Response.Status.OK, mimeType, responseDataItem.getStreamToServe());
+                }
+                if (lastModified > 0) {
+                    addValidatorHeaders(response, eTag, lastModified);
+                    addCacheControlHeader(response, httpRequest, versionToken);
+                }
             } catch (FileNotFoundException e) {
                 return get404Response(imagePath, httpRequest);
             } catch (IOException e) {
                 MyLog.error(e.getMessage(), e);
                 return get500Response(httpRequest);
+            } catch (ImageWorkAdmission.RejectedException e) {
+                return get503Response(e);
             }
         }
         return response;
     }
 
+    /**
+     * Create the response for image work that was not admitted because the server is too busy.
+     * The client is told when to try again, and not to cache the response.
+     *
+     * @param rejection The reason the work was not admitted.
+     * @return A 503 response with a Retry-After header.
+     */
+    private Response get503Response(ImageWorkAdmission.RejectedException rejection) {
+        MyLog.warning(MessageFormat.format("{0} ({1}; {2}; {3})", rejection.getMessage(), imageWorkAdmission.getStatistics(),
+                imageWorkCoalescer.getStatistics(), MyImageUtil.getConversionStatistics()));
+        Response response = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Server busy, try again later");
+        response.addHeader("Retry-After", Integer.toString(rejection.getRetryAfterSeconds()));
+        response.addHeader("Cache-Control", "no-store");
+        return response;
+    }
+
+    /**
+     * Create an entity tag for a response based on an image file.
+     *
+     * @param cachedFileEntry The image file the response is based on.
+     * @param rendition       What is made of the file (thumbnail, photo, download).
+     * @param rotation        The rotation applied to the image.
+     * @return A quoted (strong) entity tag.
+     */
+    private String createImageETag(CacheFileEntry cachedFileEntry, String rendition, ImageOrientation rotation) {
+        return MessageFormat.format("\"{0}-{1}-{2}-{3}\"", Integer.toHexString(cachedFileEntry.getFullPath().hashCode()),
+                Long.toHexString(cachedFileEntry.getLastModificationTimestamp()), rendition, String.valueOf(rotation.getRotationInDegrees()));
+    }
+
+    /**
+     * Check the conditional headers of a request (If-None-Match, and if that is absent If-Modified-Since)
+     * against the validators of the response that would be sent.
+     *
+     * @param httpRequest  The request to check.
+     * @param eTag         The entity tag of the response.
+     * @param lastModified The last modification timestamp of the response data.
+     * @return True in case the browser already has this data, and a 304 response can be sent.
+     */
+    private boolean isNotModified(IHTTPSession httpRequest, String eTag, long lastModified) {
+        String ifNoneMatch = httpRequest.getHeaders().get("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String requestETag : ifNoneMatch.split(",")) {
+                requestETag = requestETag.trim();
+                if (requestETag.startsWith("W/")) {
+                    requestETag = requestETag.substring(2);
+                }
+                if (requestETag.equals(eTag) || requestETag.equals("*")) {
+                    return true;
+                }
+            }
+            // If-Modified-Since must be ignored when If-None-Match is present.
+            return false;
+        }
+        long ifModifiedSince = parseHttpDate(httpRequest.getHeaders().get("if-modified-since"));
+        // HTTP dates have a resolution of seconds.
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Create a 304 response, telling the browser to use the data it already has.
+     *
+     * @param eTag         The entity tag of the data.
+     * @param lastModified The last modification timestamp of the data.
+     * @return An empty 304 response.
+     */
+    private Response createNotModifiedResponse(String eTag, long lastModified) {
+        Response response = new Response(Response.Status.NOT_MODIFIED, null, (String) null);
+        addValidatorHeaders(response, eTag, lastModified);
+        return response;
+    }
+
+    /**
+     * Add the ETag and Last-Modified headers to a response, so browsers can make conditional requests.
+     *
+     * @param response     The response to add the headers to.
+     * @param eTag         The entity tag of the response data.
+     * @param lastModified The last modification timestamp of the response data.
+     */
+    private void addValidatorHeaders(Response response, String eTag, long lastModified) {
+        response.addHeader("ETag", eTag);
+        response.addHeader("Last-Modified", formatHttpDate(lastModified));
+    }
+
+    /**
+     * Allow browsers to keep a response forever, in case the request URL carries the current version
+     * token of the data. A changed file or rendition leads to another URL, so this is safe.
+     *
+     * @param response       The response to add the caching header to.
+     * @param httpRequest    The request being answered.
+     * @param currentVersion The current version token of the data (may be null in case the data is not versioned).
+     */
+    private void addCacheControlHeader(Response response, IHTTPSession httpRequest, String currentVersion) {
+        String requestedVersion = httpRequest.getParms().get(HtmlTemplateProcessor.PARAMETER_VERSION);
+        if (currentVersion != null && currentVersion.equals(requestedVersion)) {
+            response.addHeader("Cache-Control", "public, max-age=31536000, immutable");
+        }
+    }
+
     /**
      * Safely convert a http parameter value for a rotation parameter to an ImageOrientation.
      *
@@ -208,69 +528,81 @@ public class InternalPhotoWebServer extends NanoHTTPD {
      */
     private Response displayIcon(String iconName, IHTTPSession httpRequest) {
         Response response;
-        int iconId = getIconResourceId(iconName);
+        String iconResourceName = getIconResourceName(iconName);
         if (iconName == null) {
             response = get500Response(httpRequest);
-        } else if (iconId == -1) {
+        } else if (iconResourceName == null) {
             response = get404Response(iconName, httpRequest);
         } else {
-            ResponseDataItem responseDataItem = getIconForDisplay(iconId);
-            response = new Response(Response.Status.OK, responseDataItem.getMimeType(), responseDataItem.getStreamToServe());
+            long lastModified = resourceProvider.getResourceVersion();
+            String eTag = MessageFormat.format("\"icon-{0}-{1}\"", iconName, Long.toHexString(lastModified));
+            if (isNotModified(httpRequest, eTag, lastModified)) {
+                response = createNotModifiedResponse(eTag, lastModified);
+            } else {
+                try {
+                    ResponseDataItem responseDataItem = getIconForDisplay(iconResourceName);
+                    response = new Response(Response.Status.OK, responseDataItem.getMimeType(), responseDataItem.getStreamToServe());
+                    addValidatorHeaders(response, eTag, lastModified);
+                } catch (IOException e) {
+                    MyLog.error(e.getMessage(), e);
+                    return get500Response(httpRequest);
+                }
+            }
+            addCacheControlHeader(response, httpRequest, HtmlTemplateProcessor.createResourceVersionToken(lastModified));
         }
         return response;
     }
 
     /**
-     * Convert an icon name string to id (this mechanism is used instead of just using the id to prevent hacking).
+     * Convert an icon name string to a resource name (this mechanism is used instead of just using the resource name to prevent hacking).
      *
-     * @param iconName The string to convert to a resource id.
-     * @return The resource id of the icon, or -1 in case it is not a known name.
+     * @param iconName The string to convert to a resource name.
+     * @return The drawable resource name of the icon, or null in case it is not a known name.
      */
-    private int getIconResourceId(String iconName) {
-        int result = -1;
+    private String getIconResourceName(String iconName) {
+        String result = null;
         switch (iconName) {
             case "logo":
-                result = R.drawable.web_logo;
+                result = "web_logo";
                 break;
             case "previous":
-                result = R.drawable.web_previous;
+                result = "web_previous";
                 break;
             case "next":
-                result = R.drawable.web_next;
+                result = "web_next";
                 break;
             case "download":
-                result = R.drawable.web_download;
+                result = "web_download";
                 break;
             case "expand":
-                result = R.drawable.web_expand;
+                result = "web_expand";
                 break;
             case "collapse":
-                result = R.drawable.web_collapse;
+                result = "web_collapse";
                 break;
             case "fullscreen":
-                result = R.drawable.web_fullscreen;
+                result = "web_fullscreen";
                 break;
             case "exit_fullscreen":
-                result = R.drawable.web_exit_fullscreen;
+                result = "web_exit_fullscreen";
                 break;
         }
         return result;
     }
 
     /**
-     * Construct a response data for an image, without further processing.
+     * Construct a response data for an image, without further processing. The file itself is
+     * served, so NanoHTTPD can transfer it to the socket without copying it through memory.
      *
      * @param cachedFileEntry The cached file entry to get a response data item for.
      * @return A response data item object representing the cached file entry.
-     * @throws FileNotFoundException In case the path in the cached file entry cannot be resolved to a file.
      */
-    private ResponseDataItem getResponseDataItemForImage(CacheFileEntry cachedFileEntry) throws FileNotFoundException {
+    private ResponseDataItem getResponseDataItemForImage(CacheFileEntry cachedFileEntry) {
         ResponseDataItem responseDataItem;
         MyLog.debug("Getting image {0}", cachedFileEntry.getFullPath());
         String pathToServe = cachedFileEntry.getFullPath();
         String mimeType = getMimeType(pathToServe);
-        InputStream streamToServe = new FileInputStream(pathToServe);
-        responseDataItem = new ResponseDataItem(streamToServe, mimeType);
+        responseDataItem = new ResponseDataItem(new File(pathToServe), mimeType);
         return responseDataItem;
     }
 
@@ -279,18 +611,23 @@ public class InternalPhotoWebServer extends NanoHTTPD {
      * also updated while getting the data).
      *
      * @param cachedFileEntry The file entry to get the thumbnail data for.
+     * @param size            The size of the thumbnail (the media store thumbnail, if any, is
+     *                        served for all sizes).
+     * @param client          The address of the client the thumbnail is for.
      * @return A response data item object representing the thumbnail of the cached file entry.
      * @throws IOException In case of an exception while accessing the data (we do not expect
      *                     errors from this method, it should already have been checked whether the cachedFileEntry
      *                     can have a proper thumbnail, which may be generated in this method).
+     * @throws ImageWorkAdmission.RejectedException In case the thumbnail must be generated, and the
+     *                     server is too busy to do so.
      */
-    private ResponseDataItem getResponseDataItemForThumbnail(CacheFileEntry cachedFileEntry) throws IOException {
-        ImageDataCache thumbnailDataCache = this.cacheRegistry.getThumbnailDataCache();
+    private ResponseDataItem getResponseDataItemForThumbnail(CacheFileEntry cachedFileEntry, final ThumbnailSize size, final String client) throws IOException, ImageWorkAdmission.RejectedException {
+        final ImageDataCache thumbnailDataCache = this.cacheRegistry.getThumbnailDataCache();
 
-        String imagePath = cachedFileEntry.getFullPath();
+        final String imagePath = cachedFileEntry.getFullPath();
 
         String mimeType = MIME_TYPE_JPEG;
-        byte[] dataToServe = thumbnailDataCache.getThumbnailFromCache(imagePath);
+        byte[] dataToServe = thumbnailDataCache.getThumbnailFromCache(imagePath, size);
         if (dataToServe == null) {
             // Not found in cache, retrieve it and then cache it.
             if (!cachedFileEntry.isCheckedForMediaStoreThumbnail()) {
@@ -303,43 +640,119 @@ public class InternalPhotoWebServer extends NanoHTTPD {
                 MyLog.debug("Getting existing thumbnail {0}", thumbnailPath);
                 mimeType = getMimeType(thumbnailPath);
                 dataToServe = readFile(thumbnailPath);
+
+                // Currently the data cache simply assumes JPEG, so it does not need to track
+                // the mime type. The media store thumbnail is the same for all sizes, it is cached once.
+                if (MIME_TYPE_JPEG.equals(mimeType)) {
+                    thumbnailDataCache.addSharedThumbnailToCache(imagePath, ThumbnailSize.LARGEST, dataToServe);
+                }
             } else {
-                MyLog.debug("Constructing new thumbnail for image {0}", cachedFileEntry.getFullPath());
                 mimeType = MIME_TYPE_JPEG;
-                dataToServe = MyImageUtil.createJPGThumbnail(cachedFileEntry.getFullPath(), HtmlTemplateProcessor.THUMBNAIL_WIDTH);
-            }
-
-            // Currently the data cache simply assumes JPEG, so it does not need to track
-            // the mime type.
-            if (MIME_TYPE_JPEG.equals(mimeType)) {
-                thumbnailDataCache.addThumbnailToCache(imagePath, dataToServe);
+                if (MIME_TYPE_JPEG.equals(getMimeType(imagePath))) {
+                    // Most camera images have a thumbnail embedded, which takes only reading the start
+                    // of the file (no admission needed, like for the media store thumbnails).
+                    dataToServe = MyImageUtil.getEmbeddedThumbnail(imagePath, size.getWidth());
+                }
+                if (dataToServe != null) {
+                    // Cached once, for all sizes it is wide enough for.
+                    int[] thumbnailDimensions = MyImageUtil.getJpegDimensions(dataToServe);
+                    ThumbnailSize largestSize = thumbnailDimensions != null ? ThumbnailSize.getLargestSizeForWidth(thumbnailDimensions[0]) : null;
+                    thumbnailDataCache.addSharedThumbnailToCache(imagePath, largestSize != null ? largestSize : size, dataToServe);
+                } else {
+                    String workKey = "thumbnail|" + imagePath + "|" + size.getWidth();
+                    dataToServe = imageWorkCoalescer.getImageData(workKey, new ImageWorkCoalescer.Generator() {
+                        @Override
+                        public byte[] generate() throws IOException, ImageWorkAdmission.RejectedException {
+                            // A concurrent request may just have generated it.
+                            byte[] result = thumbnailDataCache.getThumbnailFromCache(imagePath, size);
+                            if (result == null) {
+                                MyLog.debug("Constructing new {0} thumbnail for image {1}", size.getName(), imagePath);
+                                ImageWorkAdmission.Ticket ticket = imageWorkAdmission.admit(ImageWorkAdmission.WorkType.THUMBNAIL, client);
+                                try {
+                                    result = MyImageUtil.createJPGThumbnail(imagePath, size.getWidth());
+                                } finally {
+                                    imageWorkAdmission.release(ticket);
+                                }
+                                thumbnailDataCache.addThumbnailToCache(imagePath, size, result);
+                            }
+                            return result;
+                        }
+                    });
+                }
             }
         }
 
         return new ResponseDataItem(new ByteArrayInputStream(dataToServe), mimeType);
     }
 
+    /**
+     * Get the image data for a cached file entry whose rotation is applied by the browser: the
+     * original image with the rotation in its orientation tag, streamed from the file (nothing is
+     * decoded, encoded or cached). An image without an orientation tag to change is rotated on the
+     * server instead.
+     *
+     * @param cachedFileEntry The file entry to get the image data for.
+     * @param orientation     The rotation the browser should apply.
+     * @param client          The address of the client the image is for.
+     * @return A response data item object representing the image with the orientation.
+     * @throws IOException In case of an exception while accessing the data.
+     * @throws ImageWorkAdmission.RejectedException In case the image must be rotated on the server,
+     *                     and the server is too busy to do so.
+     */
+    private ResponseDataItem getResponseDataItemForImageWithOrientation(CacheFileEntry cachedFileEntry, ImageOrientation orientation, String client) throws IOException, ImageWorkAdmission.RejectedException {
+        String imagePath = cachedFileEntry.getFullPath();
+        InputStream imageStream = null;
+        if (MIME_TYPE_JPEG.equals(getMimeType(imagePath))) {
+            imageStream = MyImageUtil.openWithOrientation(imagePath, orientation);
+        }
+        if (imageStream == null) {
+            MyLog.debug("No orientation tag in image {0}, rotating it on the server", imagePath);
+            return getResponseDataItemForImageWithRotation(cachedFileEntry, orientation, client);
+        }
+        MyLog.debug("Getting image {0} with orientation {1,number,#}", imagePath, orientation.getRotationInDegrees());
+        return new ResponseDataItem(imageStream, MIME_TYPE_JPEG);
+    }
+
     /**
      * Get the image data for a cached file entry, using various levels of caching (that are
      * also updated while getting the data), where the image is to be rotated.
      *
      * @param cachedFileEntry The file entry to get the rotated image data for.
      * @param rotation The rotation to perform on the image.
+     * @param client The address of the client the image is for.
      * @return A response data item object representing a rotated version of the cached file entry.
      * @throws IOException In case of an exception while accessing the data (we do not expect
      *                     errors from this method, it should already have been checked whether the cachedFileEntry
      *                     should be rotated).
+     * @throws ImageWorkAdmission.RejectedException In case the rotated image must be generated, and
+     *                     the server is too busy to do so.
      */
-    private ResponseDataItem getResponseDataItemForImageWithRotation(CacheFileEntry cachedFileEntry, ImageOrientation rotation) throws IOException {
-        ImageDataCache thumbnailDataCache = this.cacheRegistry.getThumbnailDataCache();
+    private ResponseDataItem getResponseDataItemForImageWithRotation(CacheFileEntry cachedFileEntry, final ImageOrientation rotation, final String client) throws IOException, ImageWorkAdmission.RejectedException {
+        final ImageDataCache thumbnailDataCache = this.cacheRegistry.getThumbnailDataCache();
 
-        String imagePath = cachedFileEntry.getFullPath();
+        final String imagePath = cachedFileEntry.getFullPath();
         String mimeType = getMimeType(imagePath);
 
         byte[] dataToServe = thumbnailDataCache.getImageFromCache(imagePath, rotation);
         if (dataToServe == null) {
-            dataToServe = MyImageUtil.createRotatedJPG(imagePath, rotation);
-            thumbnailDataCache.addImageToCache(imagePath, rotation, dataToServe);
+            String workKey = "rotation|" + imagePath + "|" + rotation.getRotationInDegrees();
+            dataToServe = imageWorkCoalescer.getImageData(workKey, new ImageWorkCoalescer.Generator() {
+                @Override
+                public byte[] generate() throws IOException, ImageWorkAdmission.RejectedException {
+                    // A concurrent request may just have generated it.
+                    byte[] result = thumbnailDataCache.getImageFromCache(imagePath, rotation);
+                    if (result == null) {
+                        ImageWorkAdmission.Ticket ticket = imageWorkAdmission.admit(ImageWorkAdmission.WorkType.ROTATION, client);
+                        try {
+                            result = MyImageUtil.createRotatedJPG(imagePath, rotation);
+                        } finally {
+                            imageWorkAdmission.release(ticket);
+                        }
+                        thumbnailDataCache.addImageToCache(imagePath, rotation, result);
+                    }
+                    return result;
+                }
+            });
         }
         return new ResponseDataItem(new ByteArrayInputStream(dataToServe), mimeType);
     }
@@ -427,7 +840,7 @@ public class InternalPhotoWebServer extends NanoHTTPD {
      * @return The about page.
      */
     private Response getAboutPage() {
-        String content = context.getResources().getText(R.string.about_page_html).toString();
+        String content = resourceProvider.getText("about_page_html");
         return new NanoHTTPD.Response(content);
     }
 
@@ -443,7 +856,7 @@ public class InternalPhotoWebServer extends NanoHTTPD {
      * @return The response html page.
      */
     private Response displayPhotoPageAsHtml(MediaRequestState requestState) {
-        HtmlTemplateProcessor htmlOutput = new HtmlTemplateProcessor(context);
+        HtmlTemplateProcessor htmlOutput = new HtmlTemplateProcessor(resourceProvider);
 
         CacheDirectoryEntry currentPathCachedDirectory;
         boolean fullScreenMode = false;
@@ -476,7 +889,7 @@ public class InternalPhotoWebServer extends NanoHTTPD {
 
             determineImageDimensionsAndOrientation(cacheFileEntry);
             boolean isImageOrientationPortrait = treatAsImageOrientationPortrait(cacheFileEntry);
-            htmlOutput.addMainImageHtml(requestState.getCurrentImagePath(), siblingImagePaths[0], siblingImagePaths[1], fullScreenMode, isImageOrientationPortrait,
+            htmlOutput.addMainImageHtml(cacheFileEntry, siblingImagePaths[0], siblingImagePaths[1], fullScreenMode, isImageOrientationPortrait,
                     cacheFileEntry.getImageOrientation());
             if (!fullScreenMode) {
                 htmlOutput.addSeparator();
@@ -528,13 +941,12 @@ public class InternalPhotoWebServer extends NanoHTTPD {
         if (cacheFileEntry.getHeight() == null) {
             // Info not cached yet, determine and cache it now.
             try {
-                int[] dimensions = MyImageUtil.getDimensions(cacheFileEntry.getFullPath());
-                cacheFileEntry.setWidthAndHeight(dimensions[0], dimensions[1]);
-                String imagePath = cacheFileEntry.getFullPath();
-                if (MIME_TYPE_JPEG.equals(getMimeType(imagePath))) {
-                    // Perform extra step, determine a possible image rotation that needs to be applied.
-                    cacheFileEntry.setImageOrientation(MyImageUtil.getOrientationForImage(imagePath));
-                }
+                // One read of the header gives the dimensions and a possible image rotation that
+                // needs to be applied (only JPEG images have one).
+                ImageHeader imageHeader = MyImageUtil.getImageHeader(cacheFileEntry.getFullPath());
+                cacheFileEntry.setWidthAndHeight(imageHeader.getWidth(), imageHeader.getHeight());
+                cacheFileEntry.setImageOrientation(imageHeader.getOrientation());
+                MyLog.debug("Image header of {0}: {1}", cacheFileEntry.getFullPath(), imageHeader);
             } catch (Exception exception) {
                 // Log problem but simply do not set dimensions.
                 MyLog.error("Could not get dimensions for image", exception);
@@ -584,7 +996,7 @@ public class InternalPhotoWebServer extends NanoHTTPD {
 
             // Set up temporary starting point for directories
             Set<String> directories = new HashSet<>();
-            new MediaStoreUtil(getContext()).retrieveAllMediaDirectories(directories);
+            mediaIndex.retrieveAllMediaDirectories(directories);
 
             List<String> orderedDirectories = filterAndOrderDirectories(directories);
 
@@ -692,7 +1104,7 @@ public class InternalPhotoWebServer extends NanoHTTPD {
      */
     private Response get404Response(String pathToPutInTitle, IHTTPSession httpRequest) {
         MyLog.error("404 on request {0}?{1}", httpRequest.getUri(), httpRequest.getQueryParameterString());
-        HtmlTemplateProcessor result = new HtmlTemplateProcessor(context);
+        HtmlTemplateProcessor result = new HtmlTemplateProcessor(resourceProvider);
         result.set404Title(pathToPutInTitle);
         String html404Content = result.getHtmlOutput();
         Response response = new NanoHTTPD.Response(html404Content);
@@ -708,7 +1120,7 @@ public class InternalPhotoWebServer extends NanoHTTPD {
      */
     private Response get500Response(IHTTPSession httpRequest) {
         MyLog.error("505 on request {0}?{1}", httpRequest.getUri(), httpRequest.getQueryParameterString());
-        HtmlTemplateProcessor result = new HtmlTemplateProcessor(context);
+        HtmlTemplateProcessor result = new HtmlTemplateProcessor(resourceProvider);
         String requestPath = MessageFormat.format("{0}?{1}", httpRequest.getUri(), httpRequest.getQueryParameterString());
         result.set500Title(requestPath);
         String html404Content = result.getHtmlOutput();
@@ -720,17 +1132,40 @@ public class InternalPhotoWebServer extends NanoHTTPD {
     /**
      * Get the default CSS content as response.
      *
+     * @param httpRequest The context request.
      * @return A response with the CSS content with mime type text/css
      */
-    private Response getDefaultCssReponse() {
-        String cssContent = getContext().getResources().getText(R.string.default_css).toString();
+    private Response getDefaultCssReponse(IHTTPSession httpRequest) {
+        byte[] cssData = getDefaultCssData(resourceProvider);
 
-        Response response = new NanoHTTPD.Response(cssContent);
         // Css must be returned as mime-type CSS, otherwise browsers will ignore the CSS
-        response.setMimeType("text/css");
+        Response response = new NanoHTTPD.Response(Response.Status.OK, "text/css", new ByteArrayInputStream(cssData));
+        response.setPrecompressedGzipData(defaultCssGzipData);
+        addCacheControlHeader(response, httpRequest, HtmlTemplateProcessor.createResourceVersionToken(resourceProvider.getResourceVersion()));
         return response;
     }
 
+    /**
+     * Get the default CSS content as bytes, on first use the content is also compressed.
+     *
+     * @param resourceProvider The resources to get the CSS from.
+     * @return The UTF-8 encoded CSS content.
+     */
+    private static synchronized byte[] getDefaultCssData(ResourceProvider resourceProvider) {
+        if (defaultCssData == null) {
+            String cssContent = resourceProvider.getText("default_css");
+            try {
+                defaultCssData = cssContent.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                // UTF-8 is always supported.
+                throw new IllegalStateException(e);
+            }
+            defaultCssGzipData = NanoHTTPD.gzip(defaultCssData);
+            MyLog.debug("Compressed default css from {0} to {1} bytes", defaultCssData.length, defaultCssGzipData.length);
+        }
+        return defaultCssData;
+    }
+
     /**
      * Extract the image information to show from an http request.
      * This method assumes that it has already been verified that this request represents a valid
@@ -818,16 +1253,7 @@ public class InternalPhotoWebServer extends NanoHTTPD {
     }
 
     /**
-     * Get a reference to the Android context.
-     *
-     * @return The (a) context.
-     */
-    private Context getContext() {
-        return context;
-    }
-
-    /**
-     * Try to find a path to an existing thumnbnail for an image, in the Android media store.
+     * Try to find a path to an existing thumnbnail for an image, in the media index (on Android the media store).
      * The cachedFileEntry is updated in case a thumbnail is found (and in any case the state
      * is updated that this query was performed).
      *
@@ -840,21 +1266,9 @@ public class InternalPhotoWebServer extends NanoHTTPD {
 
         // If a thumbnail path was already set, we are done.
         if (cachedFileEntry.getThumbnailPath() == null) {
-            long imageFileId = new MediaStoreUtil(context).getImageIdForPath(cachedFileEntry.getFullPath());
-
-            if (imageFileId != -1) {
-                String mediaStoreQuery = MediaStore.Images.Thumbnails.IMAGE_ID + " = ? AND "
-                        + MediaStore.Images.Thumbnails.KIND + " = "
-                        + MediaStore.Images.Thumbnails.MINI_KIND;
-
-                String thumbnailPath = new MediaStoreUtil(context).performMediaStoreQueryWithSingleStringResult(MediaStore.Images.Thumbnails.EXTERNAL_CONTENT_URI,
-                        mediaStoreQuery, String.valueOf(imageFileId), MediaStore.Images.Thumbnails.DATA);
-                // Sanity check, we expect to get a JPEG image here, otherwise be safe and just ignore the Android storage.
-                if (thumbnailPath != null && thumbnailPath.toLowerCase().endsWith("jpg")) {
-                    MyLog.debug("Found thumbnail {0}", thumbnailPath);
-                    cachedFileEntry.setThumbnailPath(thumbnailPath);
-                }
-
+            String thumbnailPath = mediaIndex.findThumbnailPath(cachedFileEntry.getFullPath());
+            if (thumbnailPath != null) {
+                cachedFileEntry.setThumbnailPath(thumbnailPath);
             }
         }
     }
@@ -862,13 +1276,14 @@ public class InternalPhotoWebServer extends NanoHTTPD {
     /**
      * Get one of the icons used in the application as a response item.
      *
-     * @param iconResourceId The resource id of the resource to show.
+     * @param iconResourceName The drawable resource name of the resource to show.
      * @return A response data item.
+     * @throws IOException In case the icon resource cannot be opened.
      */
-    private ResponseDataItem getIconForDisplay(int iconResourceId) {
+    private ResponseDataItem getIconForDisplay(String iconResourceName) throws IOException {
         // All icons are pngs.
         String mimeType = "image/png";
-        InputStream stream = getContext().getResources().openRawResource(iconResourceId);
+        InputStream stream = resourceProvider.openDrawable(iconResourceName);
         return new ResponseDataItem(stream, mimeType);
     }
 
@@ -886,6 +1301,11 @@ public class InternalPhotoWebServer extends NanoHTTPD {
          */
         private InputStream streamToServe;
 
+        /**
+         * The file to serve, in case the data is an unmodified file (null otherwise).
+         */
+        private File fileToServe;
+
         /**
          * Constructor.
          *
@@ -897,6 +1317,17 @@ public class InternalPhotoWebServer extends NanoHTTPD {
             this.streamToServe = streamToServe;
         }
 
+        /**
+         * Constructor for an item that is served straight from a file.
+         *
+         * @param fileToServe The file to serve.
+         * @param mimeType    The mime type of the data to serve.
+         */
+        private ResponseDataItem(File fileToServe, String mimeType) {
+            this.mimeType = mimeType;
+            this.fileToServe = fileToServe;
+        }
+
         /**
          * Get the mime type.
          *
@@ -914,6 +1345,15 @@ public class InternalPhotoWebServer extends NanoHTTPD {
         public InputStream getStreamToServe() {
             return streamToServe;
         }
+
+        /**
+         * Get the file to serve.
+         *
+         * @return The file, or null in case the data is only available as a stream.
+         */
+        public File getFileToServe() {
+            return fileToServe;
+        }
     }
 
 
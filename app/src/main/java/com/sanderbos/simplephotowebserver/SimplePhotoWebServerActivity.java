@@ -1,5 +1,6 @@
 package com.sanderbos.simplephotowebserver;
 
+import android.content.ComponentCallbacks2;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.view.Menu;
@@ -9,6 +10,11 @@ import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.TextView;
 
+import com.sanderbos.simplephotowebserver.platform.android.AndroidImageCodec;
+import com.sanderbos.simplephotowebserver.platform.android.AndroidLogWriter;
+import com.sanderbos.simplephotowebserver.platform.android.AndroidResourceProvider;
+import com.sanderbos.simplephotowebserver.platform.android.MediaStoreIndex;
+import com.sanderbos.simplephotowebserver.util.MyImageUtil;
 import com.sanderbos.simplephotowebserver.util.MyLog;
 import com.sanderbos.simplephotowebserver.util.NetworkUtil;
 
@@ -20,6 +26,17 @@ import java.text.MessageFormat;
  */
 public class SimplePhotoWebServerActivity extends AppCompatActivity {
 
+    /**
+     * The image codec used by the server, kept to free its memory when the system is low on memory.
+     */
+    private static final AndroidImageCodec imageCodec = new AndroidImageCodec();
+
+    static {
+        // The server code is platform independent, plug in the Android implementations.
+        MyLog.setLogWriter(new AndroidLogWriter());
+        MyImageUtil.setImageCodec(imageCodec);
+    }
+
     /**
      * Reference to running web server daemon (null if not currently running).
      */
@@ -118,6 +135,26 @@ public class SimplePhotoWebServerActivity extends AppCompatActivity {
         stopWebServer();
     }
 
+    /**
+     * onTrimMemory implementation, free memory kept for reusing in image conversions.
+     *
+     * @param level The memory trim level.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        imageCodec.trimMemory(level);
+    }
+
+    /**
+     * onLowMemory implementation, free all memory kept for reusing in image conversions.
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        imageCodec.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
     /**
      * onStop implementation, stop web server if it is currently running.
      */
@@ -188,7 +225,7 @@ public class SimplePhotoWebServerActivity extends AppCompatActivity {
         MyLog.debug("startWebServer called");
         stopWebServer();
         int port = Integer.valueOf(getResources().getText(R.string.number_default_httpd_port).toString());
-        internalWebServer = new InternalPhotoWebServer(port, this);
+        internalWebServer = new InternalPhotoWebServer(port, new AndroidResourceProvider(this), new MediaStoreIndex(this));
         try {
             internalWebServer.start();
         } catch (IOException ioException) {
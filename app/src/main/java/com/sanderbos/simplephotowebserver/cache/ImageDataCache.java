@@ -1,6 +1,7 @@
 package com.sanderbos.simplephotowebserver.cache;
 
 import com.sanderbos.simplephotowebserver.util.ImageOrientation;
+import com.sanderbos.simplephotowebserver.util.ThumbnailSize;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -27,8 +28,9 @@ public class ImageDataCache {
     private int currentCacheSize;
 
     /**
-     * Reference to the underlying LRU collection. Keys in this cache can be an image path
-     * (for thumbnails) or 'imagePath|rotationInDegrees' (for images).
+     * Reference to the underlying LRU collection. Keys in this cache are of the form
+     * 'imagePath|thumbnail|sizeName' (for thumbnails), 'imagePath|shared-thumbnail|sizeName' (for
+     * thumbnails shared by all sizes up to sizeName) or 'imagePath|rotation|rotationInDegrees' (for images).
      */
     private LRUCache cache;
 
@@ -44,17 +46,20 @@ public class ImageDataCache {
     }
 
     /**
-     * Get an item from the cache (if available).
+     * Get an item from the cache (if available): the thumbnail created for the size, or else a
+     * shared thumbnail that is large enough for it.
      *
      * @param imagePath The path of the image (not the thumbnail) to get from the cache.
+     * @param size      The size of the thumbnail.
      * @return The thumbnail JPEG data of the thumbnail, or null in case that data is currently
      * not cached.
      */
-    public synchronized byte[] getThumbnailFromCache(String imagePath) {
-        byte[] result = null;
-        if (this.cache.containsKey(imagePath)) {
-            // This will update the LRU info
-            result = this.cache.get(imagePath);
+    public byte[] getThumbnailFromCache(String imagePath, ThumbnailSize size) {
+        byte[] result = getFromCache(createKey(imagePath, "thumbnail", size.getName()));
+        for (ThumbnailSize sharedSize : ThumbnailSize.values()) {
+            if (result == null && sharedSize.getWidth() >= size.getWidth()) {
+                result = getFromCache(createKey(imagePath, "shared-thumbnail", sharedSize.getName()));
+            }
         }
         return result;
     }
@@ -68,22 +73,31 @@ public class ImageDataCache {
      * not cached.
      */
     public byte[] getImageFromCache(String imagePath, ImageOrientation rotation) {
-        return getThumbnailFromCache(createPathWithRotation(imagePath, rotation));
+        return getFromCache(createKey(imagePath, "rotation", String.valueOf(rotation.getRotationInDegrees())));
     }
 
     /**
      * Add an item to the cache (the cache may be shrunk during this operation).
      *
      * @param imagePath The path of the image for which thumbnail data is being added.
+     * @param size      The size of the thumbnail.
      * @param imageData The image data to cache.
      */
-    public synchronized void addThumbnailToCache(String imagePath, byte[] imageData) {
-        int extraDataSize = imageData.length;
-        if (!this.cache.containsKey(imagePath) && extraDataSize < maximumCacheSize) {
-            makeRoom(imageData.length);
-            cache.put(imagePath, imageData);
-            this.currentCacheSize += extraDataSize;
-        }
+    public void addThumbnailToCache(String imagePath, ThumbnailSize size, byte[] imageData) {
+        addToCache(createKey(imagePath, "thumbnail", size.getName()), imageData);
+    }
+
+    /**
+     * Add a thumbnail that is served for several sizes to the cache once, such as the thumbnail
+     * embedded in the image (the cache may be shrunk during this operation).
+     *
+     * @param imagePath   The path of the image for which thumbnail data is being added.
+     * @param largestSize The largest size the thumbnail is served for, it is served for all
+     *                    smaller sizes as well.
+     * @param imageData   The image data to cache.
+     */
+    public void addSharedThumbnailToCache(String imagePath, ThumbnailSize largestSize, byte[] imageData) {
+        addToCache(createKey(imagePath, "shared-thumbnail", largestSize.getName()), imageData);
     }
 
     /**
@@ -94,18 +108,50 @@ public class ImageDataCache {
      * @param imageData The image data to cache.
      */
     public void addImageToCache(String imagePath, ImageOrientation rotation, byte[] imageData) {
-        addThumbnailToCache(createPathWithRotation(imagePath, rotation), imageData);
+        addToCache(createKey(imagePath, "rotation", String.valueOf(rotation.getRotationInDegrees())), imageData);
+    }
+
+    /**
+     * Get an item from the cache by key (if available).
+     *
+     * @param key The key of the item.
+     * @return The cached data, or null in case that data is currently not cached.
+     */
+    private synchronized byte[] getFromCache(String key) {
+        byte[] result = null;
+        if (this.cache.containsKey(key)) {
+            // This will update the LRU info
+            result = this.cache.get(key);
+        }
+        return result;
+    }
+
+    /**
+     * Add an item to the cache by key (the cache may be shrunk during this operation).
+     *
+     * @param key       The key of the item.
+     * @param imageData The image data to cache.
+     */
+    private synchronized void addToCache(String key, byte[] imageData) {
+        int extraDataSize = imageData.length;
+        if (!this.cache.containsKey(key) && extraDataSize < maximumCacheSize) {
+            makeRoom(imageData.length);
+            cache.put(key, imageData);
+            this.currentCacheSize += extraDataSize;
+        }
     }
 
     /**
-     * Construct a string of the form 'path|rotation'
+     * Construct a cache key of the form 'path|rendition|variant'. The separator cannot occur in the
+     * rendition and variant, so keys of different renditions of an image never collide.
      *
-     * @param path     The path to use in the constructed string.
-     * @param rotation The rotation to use in the constructed string.
-     * @return A string of the format 'path|rotationInDegrees'.
+     * @param path      The path of the image.
+     * @param rendition The kind of data cached (thumbnail or rotation).
+     * @param variant   The variant of the rendition (the thumbnail size or the rotation in degrees).
+     * @return The key.
      */
-    private String createPathWithRotation(String path, ImageOrientation rotation) {
-        return path + String.valueOf(rotation.getRotationInDegrees());
+    private String createKey(String path, String rendition, String variant) {
+        return path + "|" + rendition + "|" + variant;
     }
 
     /**
@@ -115,7 +161,7 @@ public class ImageDataCache {
      */
     private void makeRoom(int extraDataSize) {
         if (extraDataSize >= maximumCacheSize) {
-            // Check is already done in addThumbnailToCache
+            // Check is already done in addToCache
             throw new RuntimeException("Internal error, we should not cache these");
         }
         while (currentCacheSize + extraDataSize > maximumCacheSize) {
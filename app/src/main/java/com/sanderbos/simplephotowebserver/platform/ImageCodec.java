@@ -0,0 +1,87 @@
+package com.sanderbos.simplephotowebserver.platform;
+
+import com.sanderbos.simplephotowebserver.util.DecodePlan;
+import com.sanderbos.simplephotowebserver.util.ImageOrientation;
+
+import java.io.IOException;
+
+/**
+ * Decoding, converting and encoding of images. On Android this is done with the platform bitmap
+ * classes, elsewhere with javax.imageio. The conversions are composed of these operations by
+ * {@link com.sanderbos.simplephotowebserver.util.ImagePipeline}, each in its own stage, so
+ * implementations must be thread safe (several images are converted in parallel).
+ *
+ * @param <I> The type of decoded images of the platform.
+ */
+public interface ImageCodec<I> {
+
+    /**
+     * Get the memory used per pixel by decoded images.
+     *
+     * @param opaque True for images without an alpha channel.
+     * @return The number of bytes per pixel.
+     */
+    int getBytesPerPixel(boolean opaque);
+
+    /**
+     * Decode an image.
+     *
+     * @param imageData  The encoded image (the contents of the image file).
+     * @param decodePlan The sample size to decode with, and whether the image has an alpha channel.
+     * @return The decoded image, to be recycled when no longer needed.
+     * @throws IOException In case the image cannot be decoded.
+     */
+    I decode(byte[] imageData, DecodePlan decodePlan) throws IOException;
+
+    /**
+     * Scale an image to a new width, keeping the aspect ratio.
+     *
+     * @param image The image to scale.
+     * @param width The new width.
+     * @return The scaled image (may be the same image in case it already has the width).
+     */
+    I scaleToWidth(I image, int width);
+
+    /**
+     * Rotate an image.
+     *
+     * @param image    The image to rotate.
+     * @param rotation The rotation to apply.
+     * @return The rotated image.
+     */
+    I rotate(I image, ImageOrientation rotation);
+
+    /**
+     * Encode an image as JPEG.
+     *
+     * @param image The image to encode.
+     * @return A byte array representing a JPEG image.
+     * @throws IOException In case the image cannot be encoded.
+     */
+    byte[] encodeJPG(I image) throws IOException;
+
+    /**
+     * Release the memory of a decoded image.
+     *
+     * @param image The image that is no longer needed.
+     */
+    void recycle(I image);
+
+    /**
+     * Get a summary of the statistics of the codec (such as reuse of memory), for logging.
+     *
+     * @return The statistics, or an empty string in case the codec has none.
+     */
+    String getStatistics();
+
+    /**
+     * Get the width and height of an image, without decoding it. Used for formats that
+     * {@link com.sanderbos.simplephotowebserver.util.ImageHeaderParser} does not know.
+     *
+     * @param pathToImage The image whose dimensions to get.
+     * @return An integer array with the width (index 0 in result) and height (index 1 in result) of an
+     * image.
+     * @throws IOException In case the image cannot be opened.
+     */
+    int[] getDimensions(String pathToImage) throws IOException;
+}
@@ -0,0 +1,26 @@
+package com.sanderbos.simplephotowebserver.platform;
+
+/**
+ * Destination of the log messages of {@link com.sanderbos.simplephotowebserver.util.MyLog}. On
+ * Android this is the system log, elsewhere the standard error stream.
+ */
+public interface LogWriter {
+
+    /**
+     * Log levels.
+     */
+    int DEBUG = 3;
+    int INFO = 4;
+    int WARNING = 5;
+    int ERROR = 6;
+
+    /**
+     * Write a log message.
+     *
+     * @param level     The log level, one of the constants above.
+     * @param tag       The tag for all messages of the app.
+     * @param message   The message to log.
+     * @param throwable Optional exception to log with the message.
+     */
+    void write(int level, String tag, String message, Throwable throwable);
+}
@@ -0,0 +1,26 @@
+package com.sanderbos.simplephotowebserver.platform;
+
+import java.util.Set;
+
+/**
+ * Index of the media on the device, used to find the directories to show and existing thumbnails.
+ * On Android this is the media store, elsewhere a walk over the file system.
+ */
+public interface MediaIndex {
+
+    /**
+     * Determine all directories that contain images or videos.
+     *
+     * @param foundDirectories Found directories are added (full path) to this set if they
+     *                         are not already present.
+     */
+    void retrieveAllMediaDirectories(Set<String> foundDirectories);
+
+    /**
+     * Find an existing JPEG thumbnail for an image.
+     *
+     * @param imagePath The full path of the image.
+     * @return The full path of the thumbnail, or null in case the index has no thumbnail for the image.
+     */
+    String findThumbnailPath(String imagePath);
+}
@@ -0,0 +1,36 @@
+package com.sanderbos.simplephotowebserver.platform;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Access to the resources packaged with the server: the string resources (HTML templates, CSS,
+ * texts) and the icons. On Android these are the app resources, elsewhere they are read from the
+ * class path.
+ */
+public interface ResourceProvider {
+
+    /**
+     * Get the text of a string resource.
+     *
+     * @param name The name of the string resource (as in values/strings.xml and values/html_fragments.xml).
+     * @return The resolved text (this method does not expect an error to occur for known names).
+     */
+    String getText(String name);
+
+    /**
+     * Open an image resource.
+     *
+     * @param name The name of the drawable resource (as in the drawable directory, without extension).
+     * @return A stream with the (PNG) image data, to be closed by the caller.
+     * @throws IOException In case the resource cannot be opened.
+     */
+    InputStream openDrawable(String name) throws IOException;
+
+    /**
+     * Get the version of the resources, which changes whenever the resources may have changed.
+     *
+     * @return The resource version, a timestamp.
+     */
+    long getResourceVersion();
+}
@@ -0,0 +1,33 @@
+package com.sanderbos.simplephotowebserver.platform.android;
+
+import android.util.Log;
+
+import com.sanderbos.simplephotowebserver.platform.LogWriter;
+
+/**
+ * Log writer to the Android system log.
+ */
+public class AndroidLogWriter implements LogWriter {
+
+    @Override
+    public void write(int level, String tag, String message, Throwable throwable) {
+        switch (level) {
+            case DEBUG:
+                Log.d(tag, message);
+                break;
+            case INFO:
+                Log.i(tag, message);
+                break;
+            case WARNING:
+                Log.w(tag, message);
+                break;
+            default:
+                if (throwable != null) {
+                    Log.e(tag, message, throwable);
+                } else {
+                    Log.e(tag, message);
+                }
+                break;
+        }
+    }
+}
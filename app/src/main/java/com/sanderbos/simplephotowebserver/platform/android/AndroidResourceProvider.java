@@ -0,0 +1,75 @@
+package com.sanderbos.simplephotowebserver.platform.android;
+
+import android.content.Context;
+
+import com.sanderbos.simplephotowebserver.platform.ResourceProvider;
+import com.sanderbos.simplephotowebserver.util.AppVersionUtil;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resource provider for the resources of the Android app.
+ */
+public class AndroidResourceProvider implements ResourceProvider {
+
+    /**
+     * The context, used to resolve resources.
+     */
+    private Context context;
+
+    /**
+     * Resource identifiers by type and name, looking them up by name is relatively slow (guarded by itself).
+     */
+    private final Map<String, Integer> resourceIds = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param context The context to resolve the resources with (must remain valid while the server is active).
+     */
+    public AndroidResourceProvider(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public String getText(String name) {
+        return context.getResources().getText(getResourceId("string", name)).toString();
+    }
+
+    @Override
+    public InputStream openDrawable(String name) throws IOException {
+        int resourceId = getResourceId("drawable", name);
+        if (resourceId == 0) {
+            throw new FileNotFoundException("No drawable " + name);
+        }
+        return context.getResources().openRawResource(resourceId);
+    }
+
+    @Override
+    public long getResourceVersion() {
+        return AppVersionUtil.getResourceVersion(context);
+    }
+
+    /**
+     * Get the identifier of a resource.
+     *
+     * @param type The resource type.
+     * @param name The resource name.
+     * @return The resource identifier, or 0 in case there is no such resource.
+     */
+    private int getResourceId(String type, String name) {
+        String key = type + "/" + name;
+        synchronized (resourceIds) {
+            Integer resourceId = resourceIds.get(key);
+            if (resourceId == null) {
+                resourceId = context.getResources().getIdentifier(name, type, context.getPackageName());
+                resourceIds.put(key, resourceId);
+            }
+            return resourceId;
+        }
+    }
+}
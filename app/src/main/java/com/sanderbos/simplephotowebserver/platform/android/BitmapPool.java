@@ -0,0 +1,173 @@
+package com.sanderbos.simplephotowebserver.platform.android;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Pool of bitmaps that are no longer used, to decode or draw new bitmaps into (see
+ * BitmapFactory.Options.inBitmap), instead of allocating new bitmap memory for every conversion.
+ * Scrolling through a large directory converts many images of about the same size, so most
+ * bitmaps can be reused.
+ * <br>
+ * Bitmaps are kept in buckets by the size of their memory (powers of 2), and a bitmap is only
+ * reused for a bitmap that needs at least a quarter of its memory. The memory of the pool is
+ * limited, the bitmaps that were not used for the longest time are recycled first. Reusing bitmaps
+ * of other dimensions requires Android 4.4, on older versions the pool stays empty.
+ */
+public class BitmapPool {
+
+    /**
+     * The maximum memory of the bitmaps in the pool (in bytes).
+     */
+    private final long maximumSize;
+
+    /**
+     * The bitmaps in the pool, by bucket (the base 2 logarithm of their memory size), and in the
+     * order they were added to the pool. Guarded by this.
+     */
+    private final TreeMap<Integer, LinkedList<Bitmap>> buckets = new TreeMap<>();
+    private final LinkedList<Bitmap> leastRecentlyAdded = new LinkedList<>();
+
+    /**
+     * The memory of the bitmaps in the pool (in bytes), and statistics: requests served from the
+     * pool, requests not served, and bitmaps recycled to stay within the maximum size. Guarded by this.
+     */
+    private long currentSize;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Constructor.
+     *
+     * @param maximumSize The maximum memory of the bitmaps in the pool (in bytes).
+     */
+    public BitmapPool(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Check whether bitmaps can be reused for bitmaps of other dimensions on this device.
+     *
+     * @return True in case bitmaps can be reused.
+     */
+    public static boolean isReuseSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Take a bitmap from the pool, to reuse its memory.
+     *
+     * @param requiredSize The memory needed (in bytes).
+     * @return A mutable bitmap with at least the memory needed (to be reconfigured), or null in
+     * case the pool has no suitable bitmap.
+     */
+    public synchronized Bitmap take(int requiredSize) {
+        Bitmap result = null;
+        if (requiredSize > 0) {
+            // The bucket of the size may have smaller bitmaps, bitmaps in the next bucket are always large enough.
+            int bucket = getBucket(requiredSize);
+            result = takeFromBucket(bucket, requiredSize);
+            if (result == null) {
+                result = takeFromBucket(bucket + 1, requiredSize);
+            }
+        }
+        if (result != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return result;
+    }
+
+    /**
+     * Return a bitmap that is no longer used to the pool, or recycle it in case it cannot be reused.
+     *
+     * @param bitmap The bitmap that is no longer used.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        if (!isReuseSupported() || !bitmap.isMutable() || bitmap.getAllocationByteCount() > maximumSize) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            int size = bitmap.getAllocationByteCount();
+            LinkedList<Bitmap> bucket = buckets.get(getBucket(size));
+            if (bucket == null) {
+                bucket = new LinkedList<>();
+                buckets.put(getBucket(size), bucket);
+            }
+            bucket.add(bitmap);
+            leastRecentlyAdded.add(bitmap);
+            currentSize += size;
+            while (currentSize > maximumSize) {
+                evictLeastRecentlyAdded();
+            }
+        }
+    }
+
+    /**
+     * Recycle bitmaps of the pool, to free memory.
+     *
+     * @param targetSize The memory the pool may keep (in bytes), 0 to empty the pool.
+     */
+    public synchronized void trimToSize(long targetSize) {
+        while (currentSize > targetSize && !leastRecentlyAdded.isEmpty()) {
+            evictLeastRecentlyAdded();
+        }
+    }
+
+    /**
+     * Get the memory of the bitmaps in the pool.
+     *
+     * @return The memory size (in bytes).
+     */
+    public synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    /**
+     * Get a summary of the statistics, for logging.
+     *
+     * @return The hits, misses and evictions, and the memory of the pool.
+     */
+    public synchronized String getStatistics() {
+        return "bitmap pool: " + hitCount + " hits, " + missCount + " misses, " + evictionCount + " evictions, "
+                + leastRecentlyAdded.size() + " bitmaps of " + currentSize / 1024 + " KB (" + maximumSize / 1024 + " KB max)";
+    }
+
+    private Bitmap takeFromBucket(int bucketIndex, int requiredSize) {
+        LinkedList<Bitmap> bucket = buckets.get(bucketIndex);
+        if (bucket != null) {
+            // The most recently added bitmap first, it is the most likely to have the same dimensions.
+            for (int index = bucket.size() - 1; index >= 0; index--) {
+                Bitmap bitmap = bucket.get(index);
+                if (bitmap.getAllocationByteCount() >= requiredSize) {
+                    bucket.remove(index);
+                    leastRecentlyAdded.remove(bitmap);
+                    currentSize -= bitmap.getAllocationByteCount();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void evictLeastRecentlyAdded() {
+        Bitmap bitmap = leastRecentlyAdded.removeFirst();
+        buckets.get(getBucket(bitmap.getAllocationByteCount())).remove(bitmap);
+        currentSize -= bitmap.getAllocationByteCount();
+        evictionCount++;
+        bitmap.recycle();
+    }
+
+    private static int getBucket(int size) {
+        return 31 - Integer.numberOfLeadingZeros(size);
+    }
+}
@@ -0,0 +1,56 @@
+package com.sanderbos.simplephotowebserver.platform.android;
+
+import android.content.Context;
+import android.provider.MediaStore;
+
+import com.sanderbos.simplephotowebserver.platform.MediaIndex;
+import com.sanderbos.simplephotowebserver.util.MediaStoreUtil;
+import com.sanderbos.simplephotowebserver.util.MyLog;
+
+import java.util.Set;
+
+/**
+ * Media index based on the Android media store.
+ */
+public class MediaStoreIndex implements MediaIndex {
+
+    /**
+     * The context, used for the media store queries.
+     */
+    private Context context;
+
+    /**
+     * Constructor.
+     *
+     * @param context The context to use for queries (must remain valid while the server is active).
+     */
+    public MediaStoreIndex(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public void retrieveAllMediaDirectories(Set<String> foundDirectories) {
+        new MediaStoreUtil(context).retrieveAllMediaDirectories(foundDirectories);
+    }
+
+    @Override
+    public String findThumbnailPath(String imagePath) {
+        String result = null;
+        long imageFileId = new MediaStoreUtil(context).getImageIdForPath(imagePath);
+
+        if (imageFileId != -1) {
+            String mediaStoreQuery = MediaStore.Images.Thumbnails.IMAGE_ID + " = ? AND "
+                    + MediaStore.Images.Thumbnails.KIND + " = "
+                    + MediaStore.Images.Thumbnails.MINI_KIND;
+
+            String thumbnailPath = new MediaStoreUtil(context).performMediaStoreQueryWithSingleStringResult(MediaStore.Images.Thumbnails.EXTERNAL_CONTENT_URI,
+                    mediaStoreQuery, String.valueOf(imageFileId), MediaStore.Images.Thumbnails.DATA);
+            // Sanity check, we expect to get a JPEG image here, otherwise be safe and just ignore the Android storage.
+            if (thumbnailPath != null && thumbnailPath.toLowerCase().endsWith("jpg")) {
+                MyLog.debug("Found thumbnail {0}", thumbnailPath);
+                result = thumbnailPath;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,45 @@
+package com.sanderbos.simplephotowebserver.util;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import java.io.File;
+
+/**
+ * Utility class to determine the version of the resources packaged with the app.
+ */
+public class AppVersionUtil {
+
+    /**
+     * The resource version, determined on first use (-1 until then).
+     */
+    private static long resourceVersion = -1;
+
+    /**
+     * Get the version of the in-app resources (icons, css, templates), which changes whenever
+     * the app is updated.
+     *
+     * @param context Any context of the app.
+     * @return The time the app was last installed or updated, or the time of the first call of
+     * this method in case that could not be determined.
+     */
+    public static synchronized long getResourceVersion(Context context) {
+        if (resourceVersion == -1) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                try {
+                    resourceVersion = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+                } catch (PackageManager.NameNotFoundException e) {
+                    MyLog.error("Could not determine app update time, using current time as resource version", e);
+                }
+            } else {
+                // The update time is not known before Android 2.3, the package file is replaced by an update.
+                resourceVersion = new File(context.getApplicationInfo().sourceDir).lastModified();
+            }
+            if (resourceVersion <= 0) {
+                resourceVersion = System.currentTimeMillis();
+            }
+        }
+        return resourceVersion;
+    }
+}
@@ -0,0 +1,143 @@
+package com.sanderbos.simplephotowebserver.util;
+
+import java.text.MessageFormat;
+
+/**
+ * The way an image is decoded for a conversion: the sample size (the image is decoded that many
+ * times smaller in both directions, skipping pixels while decoding), and whether it can be decoded
+ * without an alpha channel.
+ * <br>
+ * The sample size is the largest power of 2 that still decodes the image at least as large as the
+ * target of the conversion, so the decoder does as little work and uses as little memory as
+ * possible, without losing detail in the converted image. When the memory is too small for that,
+ * a plan with a larger sample size can be derived (see {@link #withDoubledSampleSize()}).
+ */
+public class DecodePlan {
+
+    /**
+     * The width and height of the image file, 0 in case they are unknown.
+     */
+    private final int sourceWidth;
+    private final int sourceHeight;
+
+    /**
+     * The sample size (a power of 2).
+     */
+    private final int sampleSize;
+
+    /**
+     * True in case the image has no alpha channel (JPEG images).
+     */
+    private final boolean opaque;
+
+    /**
+     * Constructor, selects the sample size.
+     *
+     * @param sourceWidth  The width of the image file, 0 in case it is unknown.
+     * @param sourceHeight The height of the image file, 0 in case it is unknown.
+     * @param targetWidth  The width the decoded image must at least have.
+     * @param targetHeight The height the decoded image must at least have.
+     * @param opaque       True in case the image has no alpha channel.
+     */
+    public DecodePlan(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight, boolean opaque) {
+        this.sourceWidth = Math.max(0, sourceWidth);
+        this.sourceHeight = Math.max(0, sourceHeight);
+        this.opaque = opaque;
+
+        int selectedSampleSize = 1;
+        if (this.sourceWidth > 0 && this.sourceHeight > 0) {
+            while (getSampledSize(this.sourceWidth, selectedSampleSize * 2) >= targetWidth
+                    && getSampledSize(this.sourceHeight, selectedSampleSize * 2) >= targetHeight) {
+                selectedSampleSize *= 2;
+            }
+        }
+        this.sampleSize = selectedSampleSize;
+    }
+
+    /**
+     * Constructor for a plan with a given sample size.
+     */
+    private DecodePlan(int sourceWidth, int sourceHeight, int sampleSize, boolean opaque) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.sampleSize = sampleSize;
+        this.opaque = opaque;
+    }
+
+    /**
+     * Get the plan that decodes the same image twice as small in both directions, losing detail.
+     *
+     * @return The new plan, or null in case the image is already decoded to a single pixel (or its
+     * dimensions are unknown).
+     */
+    public DecodePlan withDoubledSampleSize() {
+        if (getDecodedWidth() <= 1 && getDecodedHeight() <= 1) {
+            return null;
+        }
+        return new DecodePlan(sourceWidth, sourceHeight, sampleSize * 2, opaque);
+    }
+
+    /**
+     * Check whether an image file has no alpha channel, based on its extension.
+     *
+     * @param pathToImage The image file.
+     * @return True for JPEG images, false for other images (which may have transparent pixels).
+     */
+    public static boolean isOpaque(String pathToImage) {
+        String lowerCasePath = pathToImage.toLowerCase();
+        return lowerCasePath.endsWith(".jpg") || lowerCasePath.endsWith(".jpeg");
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public boolean isOpaque() {
+        return opaque;
+    }
+
+    /**
+     * Check whether the dimensions of the image file are known.
+     *
+     * @return True in case the width and height are known, so the decoded size is known as well.
+     */
+    public boolean hasDimensions() {
+        return sourceWidth > 0 && sourceHeight > 0;
+    }
+
+    /**
+     * Get the width of the decoded image (decoders round up, the last pixels are not skipped).
+     *
+     * @return The width, 0 in case the dimensions are unknown.
+     */
+    public int getDecodedWidth() {
+        return getSampledSize(sourceWidth, sampleSize);
+    }
+
+    /**
+     * Get the height of the decoded image.
+     *
+     * @return The height, 0 in case the dimensions are unknown.
+     */
+    public int getDecodedHeight() {
+        return getSampledSize(sourceHeight, sampleSize);
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format("{0,number,#}x{1,number,#} decoded at 1/{2,number,#} to {3,number,#}x{4,number,#} ({5})",
+                sourceWidth, sourceHeight, sampleSize, getDecodedWidth(), getDecodedHeight(), opaque ? "opaque" : "with alpha");
+    }
+
+    private static int getSampledSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+}
@@ -0,0 +1,240 @@
+package com.sanderbos.simplephotowebserver.util;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * The Exif information of a JPEG image, as found in its APP1 segment: a TIFF structure with the
+ * image properties in the first image file directory (IFD0), and optionally an embedded thumbnail
+ * described by the second one (IFD1). The camera settings, including the capture date, are in a
+ * separate directory that IFD0 points to. Only the values the server uses are extracted.
+ */
+public class ExifSegment {
+
+    /**
+     * Exif tags.
+     */
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_DIRECTORY = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+
+    /**
+     * The format of Exif dates (in the local time of the camera, which is assumed to be the local
+     * time of the device), and their length (excluding the terminating 0).
+     */
+    private static final String DATE_FORMAT = "yyyy:MM:dd HH:mm:ss";
+    private static final int DATE_LENGTH = 19;
+
+    /**
+     * The orientation value for a normal orientation, and the compression value of JPEG thumbnails.
+     */
+    public static final int ORIENTATION_NORMAL = 1;
+    private static final int COMPRESSION_JPEG = 6;
+
+    /**
+     * The TIFF structure follows the 6 byte Exif header, offsets are relative to its start.
+     */
+    private static final int TIFF_START = 6;
+
+    /**
+     * Size of a directory entry: tag, type, count and value (or offset of the value).
+     */
+    private static final int ENTRY_SIZE = 12;
+
+    /**
+     * The segment data, and the byte order of the TIFF structure.
+     */
+    private final byte[] segment;
+    private final boolean littleEndian;
+
+    /**
+     * Constructor.
+     *
+     * @param segment The data of an APP1 segment, for which {@link #isExifSegment(byte[])} holds.
+     */
+    public ExifSegment(byte[] segment) {
+        this.segment = segment;
+        this.littleEndian = segment[TIFF_START] == 'I';
+    }
+
+    /**
+     * Check whether the data of an APP1 segment is Exif information (APP1 is used for XMP as well).
+     *
+     * @param segment The data of the segment.
+     * @return True in case the segment starts with the Exif header and has room for a TIFF header.
+     */
+    public static boolean isExifSegment(byte[] segment) {
+        return segment.length > TIFF_START + 8 && segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                && segment[4] == 0 && segment[5] == 0;
+    }
+
+    /**
+     * Get the orientation of the image.
+     *
+     * @return The Exif orientation value, normal in case the segment has no orientation tag.
+     */
+    public int getOrientation() {
+        int entry = findEntry(getFirstDirectoryPosition(), TAG_ORIENTATION);
+        // Type SHORT, the value is stored in the entry itself.
+        return entry >= 0 ? readShort(entry + 8) : ORIENTATION_NORMAL;
+    }
+
+    /**
+     * Change the orientation of the image in the segment data (the orientation tag must be present,
+     * it is not added).
+     *
+     * @param exifOrientation The new Exif orientation value.
+     * @return True in case the orientation was changed, false in case the segment has no orientation tag.
+     */
+    public boolean setOrientation(int exifOrientation) {
+        int entry = findEntry(getFirstDirectoryPosition(), TAG_ORIENTATION);
+        if (entry < 0 || entry + 10 > segment.length) {
+            return false;
+        }
+        byte first = (byte) (exifOrientation >> 8);
+        byte second = (byte) exifOrientation;
+        segment[entry + 8] = littleEndian ? second : first;
+        segment[entry + 9] = littleEndian ? first : second;
+        return true;
+    }
+
+    /**
+     * Get the date the image was captured: the original date of the camera settings, or the date of
+     * the image itself when there is none (it may have been changed by editing software).
+     *
+     * @return The capture date, or null in case the segment has no (valid) date.
+     */
+    public Date getCaptureDate() {
+        int firstDirectory = getFirstDirectoryPosition();
+        Date result = null;
+        int exifDirectoryEntry = findEntry(firstDirectory, TAG_EXIF_DIRECTORY);
+        if (exifDirectoryEntry >= 0) {
+            result = readDate(findEntry(getDirectoryPosition(readInt(exifDirectoryEntry + 8)), TAG_DATE_TIME_ORIGINAL));
+        }
+        if (result == null) {
+            result = readDate(findEntry(firstDirectory, TAG_DATE_TIME));
+        }
+        return result;
+    }
+
+    /**
+     * Get the embedded thumbnail, stored as a JPEG image after the second image file directory.
+     *
+     * @return The thumbnail JPEG data, or null in case the segment has no (JPEG) thumbnail.
+     */
+    public byte[] getThumbnail() {
+        int firstDirectory = getFirstDirectoryPosition();
+        if (firstDirectory < 0) {
+            return null;
+        }
+        // The offset of the next directory follows the entries of the first directory.
+        long secondDirectoryOffset = readInt(firstDirectory + 2 + readShort(firstDirectory) * ENTRY_SIZE);
+        int secondDirectory = getDirectoryPosition(secondDirectoryOffset);
+        if (secondDirectory < 0) {
+            return null;
+        }
+        int compressionEntry = findEntry(secondDirectory, TAG_COMPRESSION);
+        if (compressionEntry >= 0 && readShort(compressionEntry + 8) != COMPRESSION_JPEG) {
+            // An uncompressed thumbnail, which is rare and cannot be served as is.
+            return null;
+        }
+        int offsetEntry = findEntry(secondDirectory, TAG_THUMBNAIL_OFFSET);
+        int lengthEntry = findEntry(secondDirectory, TAG_THUMBNAIL_LENGTH);
+        if (offsetEntry < 0 || lengthEntry < 0) {
+            return null;
+        }
+        long thumbnailStart = TIFF_START + readInt(offsetEntry + 8);
+        long thumbnailLength = readInt(lengthEntry + 8);
+        if (thumbnailLength < 4 || thumbnailStart + thumbnailLength > segment.length) {
+            return null;
+        }
+        byte[] thumbnail = new byte[(int) thumbnailLength];
+        System.arraycopy(segment, (int) thumbnailStart, thumbnail, 0, thumbnail.length);
+        return thumbnail;
+    }
+
+    private int getFirstDirectoryPosition() {
+        return getDirectoryPosition(readInt(TIFF_START + 4));
+    }
+
+    /**
+     * Get the position of an image file directory in the segment.
+     *
+     * @param directoryOffset The offset of the directory, relative to the TIFF structure.
+     * @return The position, or -1 in case there is no directory at the offset (offset 0 marks the last directory).
+     */
+    private int getDirectoryPosition(long directoryOffset) {
+        if (directoryOffset < 8 || TIFF_START + directoryOffset + 2 > segment.length) {
+            return -1;
+        }
+        return (int) (TIFF_START + directoryOffset);
+    }
+
+    /**
+     * Find an entry in an image file directory.
+     *
+     * @param directoryPosition The position of the directory in the segment, -1 in case there is none.
+     * @param tag               The tag of the entry.
+     * @return The position of the entry, or -1 in case the directory has no entry with the tag.
+     */
+    private int findEntry(int directoryPosition, int tag) {
+        if (directoryPosition < 0) {
+            return -1;
+        }
+        int entryCount = readShort(directoryPosition);
+        int position = directoryPosition + 2;
+        for (int entry = 0; entry < entryCount && position + ENTRY_SIZE <= segment.length; entry++, position += ENTRY_SIZE) {
+            if (readShort(position) == tag) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read a date value (type ASCII, 20 bytes, so stored at an offset).
+     *
+     * @param entry The position of the entry, -1 in case there is none.
+     * @return The date, or null in case there is no entry or its value is not a valid date (cameras
+     * without a clock write spaces or zeros).
+     */
+    private Date readDate(int entry) {
+        if (entry < 0) {
+            return null;
+        }
+        long valueStart = TIFF_START + readInt(entry + 8);
+        if (valueStart + DATE_LENGTH > segment.length) {
+            return null;
+        }
+        String value = new String(segment, (int) valueStart, DATE_LENGTH, Charset.forName("US-ASCII"));
+        try {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+            dateFormat.setLenient(false);
+            return dateFormat.parse(value);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private int readShort(int position) {
+        if (position + 2 > segment.length) {
+            return 0;
+        }
+        int first = segment[position] & 0xFF;
+        int second = segment[position + 1] & 0xFF;
+        return littleEndian ? (second << 8) | first : (first << 8) | second;
+    }
+
+    private long readInt(int position) {
+        long first = readShort(position);
+        long second = readShort(position + 2);
+        return littleEndian ? (second << 16) | first : (first << 16) | second;
+    }
+}
@@ -0,0 +1,74 @@
+package com.sanderbos.simplephotowebserver.util;
+
+import java.text.MessageFormat;
+import java.util.Date;
+
+/**
+ * The metadata of an image, as found in the header of the image file by {@link ImageHeaderParser}.
+ */
+public class ImageHeader {
+
+    /**
+     * The mime type of the image (determined from the contents, not the file name).
+     */
+    private final String mimeType;
+
+    /**
+     * The width and height of the image (as stored, before the orientation is applied).
+     */
+    private final int width;
+    private final int height;
+
+    /**
+     * The orientation to apply to the image, ROTATE_NONE for images other than JPEG.
+     */
+    private final ImageOrientation orientation;
+
+    /**
+     * The date the image was captured, or null in case it is unknown.
+     */
+    private final Date captureDate;
+
+    /**
+     * Constructor.
+     *
+     * @param mimeType    The mime type of the image.
+     * @param width       The width of the image.
+     * @param height      The height of the image.
+     * @param orientation The orientation to apply to the image.
+     * @param captureDate The date the image was captured, or null in case it is unknown.
+     */
+    public ImageHeader(String mimeType, int width, int height, ImageOrientation orientation, Date captureDate) {
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.captureDate = captureDate;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public ImageOrientation getOrientation() {
+        return orientation;
+    }
+
+    public Date getCaptureDate() {
+        return captureDate;
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format("{0} {1,number,#}x{2,number,#}, rotated {3,number,#} degrees, captured {4}", mimeType, width, height,
+                orientation.getRotationInDegrees(), captureDate != null ? captureDate : "at an unknown date");
+    }
+}
@@ -0,0 +1,180 @@
+package com.sanderbos.simplephotowebserver.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser of the headers of JPEG, PNG and GIF images, which gets the dimensions, orientation and
+ * capture date of an image in one pass over the start of the file, without decoding it (or using
+ * platform classes, so it works the same on Android and on a plain JVM).
+ * <br>
+ * For JPEG images the segments are walked up to the start of frame segment with the dimensions,
+ * only the Exif segment is read (at most 64KB), the others are skipped. PNG and GIF images have
+ * their dimensions in the first bytes of the file.
+ */
+public class ImageHeaderParser {
+
+    /**
+     * Mime types of the supported formats.
+     */
+    public static final String MIME_TYPE_JPEG = "image/jpeg";
+    public static final String MIME_TYPE_PNG = "image/png";
+    public static final String MIME_TYPE_GIF = "image/gif";
+
+    /**
+     * Buffer size for reading files, the headers of most images fit.
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * The number of bytes needed to recognize the format.
+     */
+    private static final int SIGNATURE_LENGTH = 8;
+
+    /**
+     * The PNG signature, and the type of the first chunk (with the dimensions).
+     */
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int PNG_CHUNK_TYPE_HEADER = ('I' << 24) | ('H' << 16) | ('D' << 8) | 'R';
+
+    /**
+     * Parse the header of an image file.
+     *
+     * @param pathToImage The image file.
+     * @return The metadata of the image, or null in case it is not a JPEG, PNG or GIF image.
+     * @throws IOException In case the file cannot be read, or its header is invalid.
+     */
+    public static ImageHeader parse(String pathToImage) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(pathToImage), READ_BUFFER_SIZE);
+        try {
+            return parse(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Parse the header of an image.
+     *
+     * @param input The stream with the image, positioned at its start, supporting mark and reset
+     *              (such as a buffered stream). Only the header is read.
+     * @return The metadata of the image, or null in case it is not a JPEG, PNG or GIF image.
+     * @throws IOException In case the stream cannot be read, or the header is invalid.
+     */
+    public static ImageHeader parse(InputStream input) throws IOException {
+        input.mark(SIGNATURE_LENGTH);
+        byte[] signature = new byte[SIGNATURE_LENGTH];
+        int signatureLength = readAtMost(input, signature);
+        input.reset();
+
+        ImageHeader result = null;
+        if (signatureLength >= 2 && (signature[0] & 0xFF) == 0xFF && (signature[1] & 0xFF) == JpegSegmentReader.MARKER_START_OF_IMAGE) {
+            result = parseJpeg(new JpegSegmentReader(input));
+        } else if (signatureLength == SIGNATURE_LENGTH && startsWith(signature, PNG_SIGNATURE)) {
+            result = parsePng(new DataInputStream(input));
+        } else if (signatureLength >= 6 && startsWith(signature, new byte[]{'G', 'I', 'F', '8'}) && signature[5] == 'a') {
+            result = parseGif(new DataInputStream(input));
+        }
+        return result;
+    }
+
+    /**
+     * Parse the headers of a batch of image files, such as all images in a directory. Files that
+     * are not supported images, or cannot be read, are left out (and logged).
+     *
+     * @param imageFiles The image files.
+     * @return The metadata by path of the images, in the order of the files.
+     */
+    public static Map<String, ImageHeader> parseAll(List<File> imageFiles) {
+        Map<String, ImageHeader> result = new LinkedHashMap<>();
+        for (File imageFile : imageFiles) {
+            try {
+                ImageHeader header = parse(imageFile.getAbsolutePath());
+                if (header != null) {
+                    result.put(imageFile.getAbsolutePath(), header);
+                }
+            } catch (IOException e) {
+                MyLog.debug("Could not parse image header of {0}: {1}", imageFile, e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private static ImageHeader parseJpeg(JpegSegmentReader reader) throws IOException {
+        reader.readStartOfImage();
+        ImageOrientation orientation = ImageOrientation.ROTATE_NONE;
+        Date captureDate = null;
+        boolean exifFound = false;
+        // The Exif segment comes first, the dimensions follow in the start of frame segment.
+        while (true) {
+            int marker = reader.nextSegment();
+            if (marker == JpegSegmentReader.MARKER_START_OF_SCAN || marker == JpegSegmentReader.MARKER_END_OF_IMAGE) {
+                throw new IOException("No JPEG frame before the image data");
+            } else if (marker == JpegSegmentReader.MARKER_APP1 && !exifFound) {
+                byte[] segment = reader.readSegment();
+                if (ExifSegment.isExifSegment(segment)) {
+                    exifFound = true;
+                    ExifSegment exifSegment = new ExifSegment(segment);
+                    orientation = ImageOrientation.getImageOrientationByExifInterfaceValue(exifSegment.getOrientation());
+                    if (orientation == null) {
+                        // Mirrored orientations are not supported, show the image as stored.
+                        orientation = ImageOrientation.ROTATE_NONE;
+                    }
+                    captureDate = exifSegment.getCaptureDate();
+                }
+            } else if (JpegSegmentReader.isStartOfFrame(marker)) {
+                int[] dimensions = JpegSegmentReader.getFrameDimensions(reader.readSegment());
+                return new ImageHeader(MIME_TYPE_JPEG, dimensions[0], dimensions[1], orientation, captureDate);
+            }
+        }
+    }
+
+    private static ImageHeader parsePng(DataInputStream input) throws IOException {
+        // The signature, then the header chunk: length, type, width and height (big endian).
+        input.readFully(new byte[SIGNATURE_LENGTH]);
+        input.readInt();
+        if (input.readInt() != PNG_CHUNK_TYPE_HEADER) {
+            throw new IOException("No PNG header chunk");
+        }
+        int width = input.readInt();
+        int height = input.readInt();
+        return new ImageHeader(MIME_TYPE_PNG, width, height, ImageOrientation.ROTATE_NONE, null);
+    }
+
+    private static ImageHeader parseGif(DataInputStream input) throws IOException {
+        // The signature and version, then the logical screen width and height (little endian).
+        input.readFully(new byte[6]);
+        int width = input.readUnsignedByte() | (input.readUnsignedByte() << 8);
+        int height = input.readUnsignedByte() | (input.readUnsignedByte() << 8);
+        return new ImageHeader(MIME_TYPE_GIF, width, height, ImageOrientation.ROTATE_NONE, null);
+    }
+
+    private static int readAtMost(InputStream input, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = input.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        for (int index = 0; index < prefix.length; index++) {
+            if (data[index] != prefix[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
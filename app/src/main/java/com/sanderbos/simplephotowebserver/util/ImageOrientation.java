@@ -1,16 +1,15 @@
 package com.sanderbos.simplephotowebserver.util;
 
-import android.media.ExifInterface;
-
 /**
- * Enumeration of possible image rotation values, along with ExifInterface constant references and the rotation in degrees.
+ * Enumeration of possible image rotation values, along with Exif orientation values (as in the
+ * ExifInterface constants) and the rotation in degrees.
  */
 public enum ImageOrientation {
 
-    ROTATE_NONE(ExifInterface.ORIENTATION_NORMAL, 0),
-    ROTATE_90(ExifInterface.ORIENTATION_ROTATE_90, 90),
-    ROTATE_180(ExifInterface.ORIENTATION_ROTATE_180, 180),
-    ROTATE_270(ExifInterface.ORIENTATION_ROTATE_270, 270);
+    ROTATE_NONE(1, 0),
+    ROTATE_90(6, 90),
+    ROTATE_180(3, 180),
+    ROTATE_270(8, 270);
 
     /**
      * This ImageOrientation value in ExifInterface constant terms.
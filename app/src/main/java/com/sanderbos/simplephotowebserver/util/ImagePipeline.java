@@ -0,0 +1,584 @@
+package com.sanderbos.simplephotowebserver.util;
+
+import com.sanderbos.simplephotowebserver.platform.ImageCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipeline for image conversions (thumbnails and rotated images), in four stages: reading the
+ * image file, decoding the image, transforming it (scaling or rotating), and encoding the result
+ * as JPEG. Every stage has its own threads and a bounded queue, so the file of the next image is
+ * read while the current one is decoded or encoded, and a stage that falls behind holds up the
+ * stages before it (instead of piling up decoded images). The statistics per stage show which
+ * stage is the bottleneck.
+ * <br>
+ * Decoded images take a lot of memory, so every conversion reserves the memory it is estimated
+ * to need before it enters the pipeline, and it only enters when the reservation fits in the
+ * budget next to the conversions already in the pipeline. Several small images are converted in
+ * parallel, while a huge image (a panorama) that needs the whole budget is converted alone.
+ * Conversions enter in the order they were submitted: when the first waiting conversion does not
+ * fit, the ones behind it wait as well, so a large image is not held up forever by a stream of
+ * small ones.
+ * <br>
+ * Images are decoded only as large as the conversion needs (see {@link DecodePlan}), which saves
+ * decoding time and memory roughly in proportion to the pixels skipped.
+ *
+ * @param <I> The type of decoded images of the codec.
+ */
+public class ImagePipeline<I> {
+
+    /**
+     * Idle time after which stage threads are stopped (in milliseconds).
+     */
+    private static final long KEEP_ALIVE_TIME = 30000;
+
+    /**
+     * Capacity of the queue of a stage, per thread of the stage.
+     */
+    private static final int QUEUE_CAPACITY_PER_THREAD = 2;
+
+    /**
+     * The size of the longest side that rotated images are decoded to at least (in pixels), larger
+     * images are reduced while decoding, as long as they remain at least this size.
+     */
+    private static final int ROTATED_IMAGE_TARGET_SIZE = 2048;
+
+    /**
+     * The codec that performs the operations of the stages.
+     */
+    private final ImageCodec<I> codec;
+
+    /**
+     * The stages, in order.
+     */
+    private final Stage readStage;
+    private final Stage decodeStage;
+    private final Stage transformStage;
+    private final Stage encodeStage;
+
+    /**
+     * The memory budget (in bytes).
+     */
+    private final long memoryBudget;
+
+    /**
+     * The conversions waiting for memory, in order of submission, and the memory not reserved.
+     * Guarded by this.
+     */
+    private final LinkedList<Conversion> waitingConversions = new LinkedList<>();
+    private long availableMemory;
+
+    /**
+     * Statistics: the number of conversions, the total and maximum time they waited for memory
+     * and the time they took in the pipeline (in milliseconds), and the most memory reserved at
+     * once (in bytes). Guarded by this.
+     */
+    private long completedCount;
+    private long totalMemoryWaitMillis;
+    private long maximumMemoryWaitMillis;
+    private long totalConversionMillis;
+    private long maximumConversionMillis;
+    private long peakReservedMemory;
+
+    /**
+     * Statistics of the decode plans: the number of conversions by sample size, and the total number
+     * of pixels of the image files and of the decoded images. Guarded by this.
+     */
+    private final TreeMap<Integer, Long> sampleSizeCounts = new TreeMap<>();
+    private long totalSourcePixels;
+    private long totalDecodedPixels;
+
+    /**
+     * Constructor.
+     *
+     * @param codec                 The codec that performs the operations of the stages.
+     * @param readThreadCount       The number of threads reading image files.
+     * @param conversionThreadCount The number of threads decoding, transforming and encoding images (each).
+     * @param memoryBudget          The memory the conversions in the pipeline may use together (in bytes).
+     */
+    public ImagePipeline(final ImageCodec<I> codec, int readThreadCount, int conversionThreadCount, long memoryBudget) {
+        this.codec = codec;
+        this.memoryBudget = memoryBudget;
+        this.availableMemory = memoryBudget;
+
+        encodeStage = new Stage("encode", conversionThreadCount, null) {
+            @Override
+            void process(Conversion conversion) throws IOException {
+                conversion.result = codec.encodeJPG(conversion.image);
+            }
+        };
+        transformStage = new Stage("transform", conversionThreadCount, encodeStage) {
+            @Override
+            void process(Conversion conversion) {
+                I transformedImage;
+                if (conversion.rotation == null) {
+                    transformedImage = codec.scaleToWidth(conversion.image, conversion.widthForThumbnail);
+                } else {
+                    transformedImage = codec.rotate(conversion.image, conversion.rotation);
+                }
+                if (transformedImage != conversion.image) {
+                    codec.recycle(conversion.image);
+                    conversion.image = transformedImage;
+                }
+            }
+        };
+        decodeStage = new Stage("decode", conversionThreadCount, transformStage) {
+            @Override
+            void process(Conversion conversion) throws IOException {
+                conversion.image = codec.decode(conversion.imageData, conversion.decodePlan);
+                conversion.imageData = null;
+            }
+        };
+        readStage = new Stage("read", readThreadCount, decodeStage) {
+            @Override
+            void process(Conversion conversion) throws IOException {
+                conversion.imageData = readFile(conversion.pathToImage);
+            }
+        };
+    }
+
+    /**
+     * Convert an image in the pipeline, once its memory reservation fits, and wait for it.
+     *
+     * @param pathToImage       The full path to the image, expected to represent an existing image.
+     * @param widthForThumbnail The width to use for thumbnails (not used when a rotation is applied).
+     * @param rotation          An optional rotation, null to create a thumbnail.
+     * @return A byte array representing a converted JPEG image.
+     * @throws IOException In case the conversion fails, or the thread is interrupted before the
+     *                     conversion entered the pipeline.
+     */
+    public byte[] convert(String pathToImage, int widthForThumbnail, ImageOrientation rotation) throws IOException {
+        // Only the header is read to get the dimensions. The memory of an image whose dimensions
+        // are unknown cannot be estimated, it reserves the whole budget (and is decoded at full size).
+        int[] dimensions = MyImageUtil.getDimensions(pathToImage);
+        DecodePlan decodePlan = createDecodePlan(pathToImage, dimensions, widthForThumbnail, rotation);
+        long requiredMemory = memoryBudget;
+        if (decodePlan.hasDimensions()) {
+            requiredMemory = estimateMemory(pathToImage, decodePlan, widthForThumbnail, rotation);
+            // On a small heap the image is decoded smaller than the target rather than not at all.
+            DecodePlan smallerPlan = decodePlan.withDoubledSampleSize();
+            while (requiredMemory > memoryBudget && smallerPlan != null) {
+                decodePlan = smallerPlan;
+                requiredMemory = estimateMemory(pathToImage, decodePlan, widthForThumbnail, rotation);
+                smallerPlan = decodePlan.withDoubledSampleSize();
+            }
+        }
+        MyLog.debug("Decode plan for {0} of {1}: {2}", rotation == null ? "thumbnail" : "rotation", pathToImage, decodePlan);
+        registerDecodePlan(decodePlan);
+
+        // What still does not fit (a file larger than the budget) is converted alone.
+        Conversion conversion = new Conversion(pathToImage, widthForThumbnail, rotation, decodePlan, Math.min(requiredMemory, memoryBudget));
+        reserveMemory(conversion);
+        try {
+            readStage.submit(conversion);
+        } catch (InterruptedException e) {
+            releaseMemory(conversion);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to convert " + pathToImage);
+        }
+        return conversion.awaitResult();
+    }
+
+    /**
+     * Select how to decode an image for a conversion. A thumbnail needs at least the width of the
+     * thumbnail, a rotated image at least the target size for its longest side (or its full size
+     * for smaller images).
+     *
+     * @param pathToImage       The image to convert.
+     * @param dimensions        The width and height of the image (0 or less in case they are unknown).
+     * @param widthForThumbnail The width of the thumbnail (not used when a rotation is applied).
+     * @param rotation          The rotation to apply, or null for a thumbnail.
+     * @return The decode plan.
+     */
+    private DecodePlan createDecodePlan(String pathToImage, int[] dimensions, int widthForThumbnail, ImageOrientation rotation) {
+        int targetWidth;
+        int targetHeight;
+        if (rotation == null) {
+            // The thumbnail is scaled to the width, the height follows.
+            targetWidth = widthForThumbnail;
+            targetHeight = 1;
+        } else if (dimensions[0] >= dimensions[1]) {
+            targetWidth = Math.min(dimensions[0], ROTATED_IMAGE_TARGET_SIZE);
+            targetHeight = 1;
+        } else {
+            targetWidth = 1;
+            targetHeight = Math.min(dimensions[1], ROTATED_IMAGE_TARGET_SIZE);
+        }
+        return new DecodePlan(dimensions[0], dimensions[1], targetWidth, targetHeight, DecodePlan.isOpaque(pathToImage));
+    }
+
+    /**
+     * Add a decode plan to the statistics.
+     *
+     * @param decodePlan The decode plan of a conversion.
+     */
+    private synchronized void registerDecodePlan(DecodePlan decodePlan) {
+        Long count = sampleSizeCounts.get(decodePlan.getSampleSize());
+        sampleSizeCounts.put(decodePlan.getSampleSize(), count == null ? 1 : count + 1);
+        totalSourcePixels += (long) decodePlan.getSourceWidth() * decodePlan.getSourceHeight();
+        totalDecodedPixels += (long) decodePlan.getDecodedWidth() * decodePlan.getDecodedHeight();
+    }
+
+    /**
+     * Estimate the memory a conversion needs: the image file, the decoded image (width * height *
+     * bytes per pixel, after sampling) and the converted image.
+     *
+     * @param pathToImage       The image to convert.
+     * @param decodePlan        The way the image is decoded (with known dimensions).
+     * @param widthForThumbnail The width of the thumbnail (not used when a rotation is applied).
+     * @param rotation          The rotation to apply, or null for a thumbnail.
+     * @return The estimated memory (in bytes).
+     */
+    private long estimateMemory(String pathToImage, DecodePlan decodePlan, int widthForThumbnail, ImageOrientation rotation) {
+        int bytesPerPixel = codec.getBytesPerPixel(decodePlan.isOpaque());
+        long decodedBytes = (long) decodePlan.getDecodedWidth() * decodePlan.getDecodedHeight() * bytesPerPixel;
+        long convertedBytes;
+        if (rotation == null) {
+            convertedBytes = (long) widthForThumbnail * widthForThumbnail * decodePlan.getSourceHeight() / decodePlan.getSourceWidth() * bytesPerPixel;
+        } else {
+            // The rotated image is a copy of the same size.
+            convertedBytes = decodedBytes;
+        }
+        return new File(pathToImage).length() + decodedBytes + convertedBytes;
+    }
+
+    /**
+     * Wait until the memory reservation of a conversion fits, and reserve it.
+     *
+     * @param conversion The conversion to reserve memory for.
+     * @throws InterruptedIOException In case the thread is interrupted while waiting.
+     */
+    private synchronized void reserveMemory(Conversion conversion) throws InterruptedIOException {
+        waitingConversions.add(conversion);
+        while (waitingConversions.getFirst() != conversion || conversion.reservedMemory > availableMemory) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                waitingConversions.remove(conversion);
+                // Conversions behind it may fit now.
+                notifyAll();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to convert " + conversion.pathToImage);
+            }
+        }
+        waitingConversions.removeFirst();
+        availableMemory -= conversion.reservedMemory;
+        peakReservedMemory = Math.max(peakReservedMemory, memoryBudget - availableMemory);
+        conversion.startTime = System.currentTimeMillis();
+        // The next conversion may fit as well.
+        notifyAll();
+    }
+
+    /**
+     * Release the memory reservation of a conversion that left the pipeline.
+     *
+     * @param conversion The conversion whose memory to release.
+     */
+    private synchronized void releaseMemory(Conversion conversion) {
+        availableMemory += conversion.reservedMemory;
+        notifyAll();
+    }
+
+    /**
+     * Register that a conversion left the pipeline, and hand its outcome to the waiting request.
+     *
+     * @param conversion The conversion that is done.
+     * @param failure    The reason the conversion failed, or null in case it succeeded.
+     */
+    private void conversionDone(Conversion conversion, Throwable failure) {
+        if (conversion.image != null) {
+            codec.recycle(conversion.image);
+            conversion.image = null;
+        }
+        releaseMemory(conversion);
+        long endTime = System.currentTimeMillis();
+        long memoryWaitMillis = conversion.startTime - conversion.submitTime;
+        long conversionMillis = endTime - conversion.startTime;
+        synchronized (this) {
+            completedCount++;
+            totalMemoryWaitMillis += memoryWaitMillis;
+            maximumMemoryWaitMillis = Math.max(maximumMemoryWaitMillis, memoryWaitMillis);
+            totalConversionMillis += conversionMillis;
+            maximumConversionMillis = Math.max(maximumConversionMillis, conversionMillis);
+        }
+        MyLog.debug("Converted {0} in {1,number,#}ms after waiting {2,number,#}ms ({3,number,#} KB reserved)", conversion.getDescription(),
+                conversionMillis, memoryWaitMillis, conversion.reservedMemory / 1024);
+        conversion.complete(failure);
+    }
+
+    /**
+     * Get a summary of the statistics, for logging.
+     *
+     * @return The time conversions waited for memory versus the time they took, the memory use,
+     * the sample sizes and the share of pixels decoded, and per stage the time conversions waited in its queue versus the time the stage took.
+     */
+    public String getStatistics() {
+        StringBuilder result = new StringBuilder();
+        synchronized (this) {
+            long averageMemoryWaitMillis = completedCount > 0 ? totalMemoryWaitMillis / completedCount : 0;
+            long averageConversionMillis = completedCount > 0 ? totalConversionMillis / completedCount : 0;
+            result.append(completedCount).append(" conversions, waited for memory ").append(averageMemoryWaitMillis)
+                    .append("ms average (").append(maximumMemoryWaitMillis).append("ms max), converted in ")
+                    .append(averageConversionMillis).append("ms average (").append(maximumConversionMillis).append("ms max), ")
+                    .append(waitingConversions.size()).append(" waiting, ").append((memoryBudget - availableMemory) / 1024)
+                    .append(" KB reserved (").append(peakReservedMemory / 1024).append(" KB peak, ").append(memoryBudget / 1024)
+                    .append(" KB budget), sample sizes");
+            for (Map.Entry<Integer, Long> sampleSizeCount : sampleSizeCounts.entrySet()) {
+                result.append(" 1/").append(sampleSizeCount.getKey()).append(": ").append(sampleSizeCount.getValue());
+            }
+            long decodedPercentage = totalSourcePixels > 0 ? totalDecodedPixels * 100 / totalSourcePixels : 0;
+            result.append(", decoded ").append(totalDecodedPixels / 1000000).append(" of ").append(totalSourcePixels / 1000000)
+                    .append(" megapixels (").append(decodedPercentage).append("%)");
+        }
+        result.append("; ").append(readStage.getStatistics());
+        result.append("; ").append(decodeStage.getStatistics());
+        result.append("; ").append(transformStage.getStatistics());
+        result.append("; ").append(encodeStage.getStatistics());
+        String codecStatistics = codec.getStatistics();
+        if (!codecStatistics.isEmpty()) {
+            result.append("; ").append(codecStatistics);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Read a file into a byte array.
+     *
+     * @param path The (full) path of the file to load.
+     * @return The contents of the file read into memory.
+     * @throws IOException In case of errors while accessing the file (including if it does
+     *                     not exist).
+     */
+    private static byte[] readFile(String path) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(new File(path), "r");
+        try {
+            byte[] result = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(result);
+            return result;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * A stage of the pipeline, with its own threads and bounded queue.
+     */
+    private abstract class Stage {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * The next stage, or null for the last stage.
+         */
+        private final Stage nextStage;
+
+        /**
+         * Statistics: the number of conversions processed, the total time they waited in the queue,
+         * the total and maximum time the stage took (in milliseconds), and the largest queue
+         * depth. Guarded by this.
+         */
+        private long processedCount;
+        private long totalQueueWaitMillis;
+        private long totalProcessMillis;
+        private long maximumProcessMillis;
+        private int maximumQueueDepth;
+
+        private Stage(String name, int threadCount, Stage nextStage) {
+            this.name = name;
+            this.nextStage = nextStage;
+            this.executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(threadCount * QUEUE_CAPACITY_PER_THREAD), new StageThreadFactory(name));
+            try {
+                this.executor.allowCoreThreadTimeOut(true);
+            } catch (NoSuchMethodError e) {
+                // Not available before Android 2.3 (API 9), the threads are kept there.
+            }
+        }
+
+        /**
+         * Perform the work of this stage on a conversion.
+         *
+         * @param conversion The conversion.
+         * @throws IOException In case the conversion fails.
+         */
+        abstract void process(Conversion conversion) throws IOException;
+
+        /**
+         * Queue a conversion for this stage, waiting while the queue is full.
+         *
+         * @param conversion The conversion.
+         * @throws InterruptedException In case the thread is interrupted while waiting.
+         */
+        private void submit(final Conversion conversion) throws InterruptedException {
+            final long queueTime = System.currentTimeMillis();
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    runStage(conversion, queueTime);
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // All threads are busy and the queue is full (so no thread will stop while this waits).
+                executor.getQueue().put(task);
+            }
+            synchronized (this) {
+                maximumQueueDepth = Math.max(maximumQueueDepth, executor.getQueue().size());
+            }
+        }
+
+        /**
+         * Perform the work of this stage on a conversion, and pass it on to the next stage.
+         *
+         * @param conversion The conversion.
+         * @param queueTime  The time the conversion was queued for this stage.
+         */
+        private void runStage(Conversion conversion, long queueTime) {
+            long startTime = System.currentTimeMillis();
+            Throwable failure = null;
+            try {
+                process(conversion);
+            } catch (Throwable e) {
+                failure = e;
+            }
+            long processMillis = System.currentTimeMillis() - startTime;
+            synchronized (this) {
+                processedCount++;
+                totalQueueWaitMillis += startTime - queueTime;
+                totalProcessMillis += processMillis;
+                maximumProcessMillis = Math.max(maximumProcessMillis, processMillis);
+            }
+
+            if (failure != null || nextStage == null) {
+                conversionDone(conversion, failure);
+            } else {
+                try {
+                    // Waits in case the next stage is behind.
+                    nextStage.submit(conversion);
+                } catch (InterruptedException e) {
+                    conversionDone(conversion, new InterruptedIOException("Interrupted while passing on " + conversion.getDescription()));
+                }
+            }
+        }
+
+        private synchronized String getStatistics() {
+            long averageQueueWaitMillis = processedCount > 0 ? totalQueueWaitMillis / processedCount : 0;
+            long averageProcessMillis = processedCount > 0 ? totalProcessMillis / processedCount : 0;
+            return name + ": " + processedCount + " processed in " + averageProcessMillis + "ms average ("
+                    + maximumProcessMillis + "ms max) after waiting " + averageQueueWaitMillis + "ms average, "
+                    + executor.getActiveCount() + " active, " + executor.getQueue().size() + " queued ("
+                    + maximumQueueDepth + " max)";
+        }
+    }
+
+    /**
+     * A conversion passing through the pipeline, and its outcome.
+     */
+    private final class Conversion {
+        private final String pathToImage;
+        private final int widthForThumbnail;
+        private final ImageOrientation rotation;
+        private final DecodePlan decodePlan;
+        private final long reservedMemory;
+        private final long submitTime = System.currentTimeMillis();
+
+        /**
+         * Time the conversion entered the pipeline.
+         */
+        private long startTime;
+
+        /**
+         * Intermediate results, passed on from stage to stage (the executors make them visible to
+         * the next stage).
+         */
+        private byte[] imageData;
+        private I image;
+        private byte[] result;
+
+        /**
+         * The outcome, guarded by this.
+         */
+        private boolean done;
+        private Throwable failure;
+
+        private Conversion(String pathToImage, int widthForThumbnail, ImageOrientation rotation, DecodePlan decodePlan, long reservedMemory) {
+            this.pathToImage = pathToImage;
+            this.widthForThumbnail = widthForThumbnail;
+            this.rotation = rotation;
+            this.decodePlan = decodePlan;
+            this.reservedMemory = reservedMemory;
+        }
+
+        private String getDescription() {
+            return (rotation == null ? "thumbnail of " : "rotation of ") + pathToImage;
+        }
+
+        private synchronized void complete(Throwable failure) {
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait for the conversion to complete. A conversion in the pipeline is waited for even when
+         * interrupted, its memory is in use until it is done.
+         *
+         * @return The converted image data.
+         * @throws IOException In case the conversion failed.
+         */
+        private synchronized byte[] awaitResult() throws IOException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Creates daemon threads, named according to their stage and number (useful when profiling).
+     */
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String stageName;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        private StageThreadFactory(String stageName) {
+            this.stageName = stageName;
+        }
+
+        @Override
+        public Thread newThread(Runnable code) {
+            Thread thread = new Thread(code);
+            thread.setDaemon(true);
+            thread.setName("Image Pipeline " + stageName + " (#" + threadCount.incrementAndGet() + ")");
+            return thread;
+        }
+    }
+}
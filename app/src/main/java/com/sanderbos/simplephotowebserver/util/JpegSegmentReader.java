@@ -0,0 +1,179 @@
+package com.sanderbos.simplephotowebserver.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming reader of the segments at the start of a JPEG file (up to the image data), so that
+ * metadata can be found by reading only the first part of the file. The segments are read one at
+ * a time: a segment is either read or skipped before the next one.
+ */
+public class JpegSegmentReader {
+
+    /**
+     * JPEG markers (the byte following 0xFF).
+     */
+    public static final int MARKER_START_OF_IMAGE = 0xD8;
+    public static final int MARKER_APP1 = 0xE1;
+    public static final int MARKER_START_OF_SCAN = 0xDA;
+    public static final int MARKER_END_OF_IMAGE = 0xD9;
+
+    /**
+     * The stream, positioned after the header of the current segment.
+     */
+    private final DataInputStream input;
+
+    /**
+     * The length of the data of the current segment (excluding the marker and length), and whether
+     * it was read or skipped already.
+     */
+    private int segmentLength;
+    private boolean segmentConsumed = true;
+
+    /**
+     * The number of bytes read from the stream, and the position of the data of the current segment.
+     */
+    private long position;
+    private long segmentPosition;
+
+    /**
+     * Constructor.
+     *
+     * @param input The stream with the JPEG image, positioned at its start (should be buffered).
+     */
+    public JpegSegmentReader(InputStream input) {
+        this.input = new DataInputStream(input);
+    }
+
+    /**
+     * Read the start of image marker.
+     *
+     * @return True in case the stream is a JPEG image, false otherwise (nothing else should be read then).
+     * @throws IOException In case the stream cannot be read.
+     */
+    public boolean readStartOfImage() throws IOException {
+        try {
+            position += 2;
+            return input.readUnsignedByte() == 0xFF && input.readUnsignedByte() == MARKER_START_OF_IMAGE;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Move to the next segment, skipping the current one in case it was not read.
+     *
+     * @return The marker of the segment. Nothing can be read after the start of scan or end of
+     * image markers.
+     * @throws IOException In case the stream cannot be read, or is not a valid JPEG image (including
+     *                     its end before the image data).
+     */
+    public int nextSegment() throws IOException {
+        if (!segmentConsumed) {
+            skipSegment();
+        }
+        if (input.readUnsignedByte() != 0xFF) {
+            throw new IOException("Invalid JPEG segment");
+        }
+        int marker = input.readUnsignedByte();
+        position += 2;
+        while (marker == 0xFF) {
+            // Fill bytes.
+            marker = input.readUnsignedByte();
+            position++;
+        }
+        if (marker == MARKER_END_OF_IMAGE || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01) {
+            // Markers without a length.
+            segmentLength = 0;
+        } else {
+            segmentLength = input.readUnsignedShort() - 2;
+            position += 2;
+            if (segmentLength < 0) {
+                throw new IOException("Invalid JPEG segment length");
+            }
+        }
+        segmentPosition = position;
+        segmentConsumed = marker == MARKER_START_OF_SCAN || marker == MARKER_END_OF_IMAGE;
+        return marker;
+    }
+
+    /**
+     * Get the length of the data of the current segment.
+     *
+     * @return The length (in bytes).
+     */
+    public int getSegmentLength() {
+        return segmentLength;
+    }
+
+    /**
+     * Get the position of the data of the current segment in the stream.
+     *
+     * @return The number of bytes before the data of the segment (after its marker and length).
+     */
+    public long getSegmentPosition() {
+        return segmentPosition;
+    }
+
+    /**
+     * Read the data of the current segment.
+     *
+     * @return The segment data (excluding the marker and length).
+     * @throws IOException In case the stream cannot be read.
+     */
+    public byte[] readSegment() throws IOException {
+        byte[] segment = new byte[segmentLength];
+        input.readFully(segment);
+        position += segmentLength;
+        segmentConsumed = true;
+        return segment;
+    }
+
+    /**
+     * Skip the data of the current segment.
+     *
+     * @throws IOException In case the stream cannot be read.
+     */
+    public void skipSegment() throws IOException {
+        int remaining = segmentLength;
+        while (remaining > 0) {
+            int skipped = input.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+        position += segmentLength;
+        segmentConsumed = true;
+    }
+
+    /**
+     * Check whether a marker is a start of frame marker, whose segment holds the dimensions of the image.
+     *
+     * @param marker The marker.
+     * @return True for the start of frame markers (of all encodings).
+     */
+    public static boolean isStartOfFrame(int marker) {
+        // 0xC4 (Huffman tables), 0xC8 (reserved) and 0xCC (arithmetic coding) are in the range as well.
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * Get the dimensions from the data of a start of frame segment.
+     *
+     * @param segment The data of the segment.
+     * @return An integer array with the width (index 0 in result) and height (index 1 in result).
+     * @throws IOException In case the segment is too short.
+     */
+    public static int[] getFrameDimensions(byte[] segment) throws IOException {
+        if (segment.length < 5) {
+            throw new IOException("Invalid JPEG frame segment");
+        }
+        // Sample precision, then height and width.
+        int height = ((segment[1] & 0xFF) << 8) | (segment[2] & 0xFF);
+        int width = ((segment[3] & 0xFF) << 8) | (segment[4] & 0xFF);
+        return new int[]{width, height};
+    }
+}
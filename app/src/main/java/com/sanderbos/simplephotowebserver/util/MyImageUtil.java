@@ -1,24 +1,67 @@
 package com.sanderbos.simplephotowebserver.util;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
-import android.media.ExifInterface;
+import com.sanderbos.simplephotowebserver.platform.ImageCodec;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Utility class with code related to accessing images in the meta-database
- * or creating thumbnails and other JPEGs from scratch.
+ * or creating thumbnails and other JPEGs from scratch. The actual image work is done by the
+ * image codec of the platform, in a pipeline with a memory budget.
  */
 public class MyImageUtil {
 
     /**
-     * Quality to use for converted images.
+     * The number of threads reading image files.
      */
-    private static final int JPEG_COMPRESSION_QUALITY = 80;
+    private static final int READ_THREAD_COUNT = 2;
+
+    /**
+     * The maximum number of conversions decoded, transformed or encoded in parallel (each), one
+     * per processor.
+     */
+    private static final int CONVERSION_THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The memory the conversions in the pipeline may use together, a quarter of the heap.
+     */
+    private static final long CONVERSION_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * Buffer size for reading the segments at the start of JPEG files.
+     */
+    private static final int SEGMENT_READ_BUFFER_SIZE = 8192;
+
+    /**
+     * Statistics: images whose embedded thumbnail was used, and images without a usable one.
+     */
+    private static final AtomicLong embeddedThumbnailHitCount = new AtomicLong();
+    private static final AtomicLong embeddedThumbnailMissCount = new AtomicLong();
+
+    /**
+     * The image codec of the platform, and the pipeline that converts images with it, must be
+     * set before images are converted.
+     */
+    private static volatile ImageCodec<?> imageCodec;
+    private static volatile ImagePipeline<?> imagePipeline;
+
+    /**
+     * Set the image codec to use.
+     *
+     * @param codec The image codec of the platform.
+     * @param <I>   The type of decoded images of the codec.
+     */
+    public static <I> void setImageCodec(ImageCodec<I> codec) {
+        imagePipeline = new ImagePipeline<>(codec, READ_THREAD_COUNT, CONVERSION_THREAD_COUNT, CONVERSION_MEMORY_BUDGET);
+        imageCodec = codec;
+    }
 
     /**
      * Create a thumbnail image, based on a path.
@@ -50,9 +93,6 @@ public class MyImageUtil {
 
     /**
      * Create a converted image, based on a path, a new width, and an optional rotation.
-     * <br>
-     * (Performance characteristics indication on a Galaxy S3: 250ms for small images (&lt; 200KB), 700ms for larger images,
-     * for a width of 40 pixels the images are about 2KB).
      *
      * @param pathToImage    The full path to the image, expected to represent an existing image.
      * @param thumbnailWidth The width to use for thumbnails (not used when a rotation is applied).
@@ -60,66 +100,192 @@ public class MyImageUtil {
      * @return A byte array representing a converted JPEG image.
      * @throws IOException In case the file cannot be opened, or closed.
      */
-    private static synchronized byte[] performJPGConversion(String pathToImage, int thumbnailWidth, ImageOrientation rotation) throws IOException {
-
-        // This method is synchronized for a reason. It takes a lot of memory to construct the bitmap object, so it should be taken care
-        // of that no two conversions are executed at the same time
+    private static byte[] performJPGConversion(String pathToImage, int thumbnailWidth, ImageOrientation rotation) throws IOException {
 
-        byte[] convertedImageData = null;
+        // It takes a lot of memory to construct the bitmap object, so conversions reserve the memory they
+        // need from the budget of the pipeline (estimated from the dimensions) before they are started.
+        getImageCodec();
+        return imagePipeline.convert(pathToImage, thumbnailWidth, rotation);
+    }
 
-        // http://stackoverflow.com/questions/2577221/android-how-to-create-runtime-thumbnail recommends using
-        // Bitmap ThumbImage = ThumbnailUtils.extractThumbnail(BitmapFactory.decodeFile(imagePath), THUMBSIZE, THUMBSIZE);
-        // but then I must know the height.
-        FileInputStream imageInputStream = new FileInputStream(pathToImage);
+    /**
+     * Open a JPEG image to be served with the orientation tag in its Exif information set to a
+     * rotation, so that the browser rotates it (no decoding and encoding, and nothing is lost). Only
+     * the Exif segment is changed, the rest of the file is streamed as is.
+     *
+     * @param pathToJpegImage The full path to the JPEG image.
+     * @param orientation     The rotation the browser should apply.
+     * @return A stream with the changed image (of the same length as the file), or null in case the
+     * image has no orientation tag to change.
+     * @throws IOException In case the file cannot be read, or is not a valid JPEG image.
+     */
+    public static InputStream openWithOrientation(String pathToJpegImage, ImageOrientation orientation) throws IOException {
+        long exifSegmentPosition = -1;
+        byte[] exifSegment = null;
+        InputStream input = new BufferedInputStream(new FileInputStream(pathToJpegImage), SEGMENT_READ_BUFFER_SIZE);
         try {
-            //
-            BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
-            if (rotation != null) {
-                // Thumbnails, the scale is set to 8 for performance, must be power of 2 setting it to 16 (smaller) did not make performance better.
-                bitmapOptions.inSampleSize = 8;
-            } else {
-                // Rotation, to lower quality reduce size somewhat on reading (not possible during rotation).
-                // Sort of magic number, but for input file of 1.6MB leads to output file of
-                bitmapOptions.inSampleSize = 2;
+            JpegSegmentReader reader = new JpegSegmentReader(input);
+            if (!reader.readStartOfImage()) {
+                throw new IOException("Not a JPEG image: " + pathToJpegImage);
             }
+            // The Exif segment comes before the start of frame segment.
+            int marker = reader.nextSegment();
+            while (exifSegment == null && marker != JpegSegmentReader.MARKER_START_OF_SCAN && marker != JpegSegmentReader.MARKER_END_OF_IMAGE
+                    && !JpegSegmentReader.isStartOfFrame(marker)) {
+                if (marker == JpegSegmentReader.MARKER_APP1) {
+                    exifSegmentPosition = reader.getSegmentPosition();
+                    byte[] segment = reader.readSegment();
+                    if (ExifSegment.isExifSegment(segment)) {
+                        exifSegment = segment;
+                    }
+                }
+                if (exifSegment == null) {
+                    marker = reader.nextSegment();
+                }
+            }
+        } finally {
+            input.close();
+        }
+        if (exifSegment == null || !new ExifSegment(exifSegment).setOrientation(orientation.getExifInterfaceConstantValue())) {
+            return null;
+        }
+
+        // The start of the file up to and including the changed Exif segment replaces the original.
+        byte[] head = new byte[(int) exifSegmentPosition + exifSegment.length];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(pathToJpegImage, "r");
+        try {
+            randomAccessFile.readFully(head, 0, (int) exifSegmentPosition);
+        } finally {
+            randomAccessFile.close();
+        }
+        System.arraycopy(exifSegment, 0, head, (int) exifSegmentPosition, exifSegment.length);
+        return new PatchedFileInputStream(new File(pathToJpegImage), head);
+    }
 
-            Bitmap imageBitmap = BitmapFactory.decodeStream(imageInputStream, null, bitmapOptions);
+    /**
+     * Get the thumbnail embedded in the Exif information of a JPEG image, which most cameras store.
+     * Only the segments at the start of the file are read (up to the image dimensions), so this is
+     * much faster than creating a thumbnail. Like created thumbnails, the embedded thumbnail has the
+     * orientation of the image data (the Exif orientation applies to both), a thumbnail that does not
+     * have the proportions of the image (such as one with black bars) is not used.
+     *
+     * @param pathToJpegImage The full path to the JPEG image.
+     * @param minimumWidth    The width the thumbnail must at least have.
+     * @return The JPEG data of the thumbnail, or null in case the image has no usable thumbnail
+     * (or the file cannot be read, after which a thumbnail should be created as usual).
+     */
+    public static byte[] getEmbeddedThumbnail(String pathToJpegImage, int minimumWidth) {
+        byte[] thumbnail = null;
+        try {
+            InputStream input = new BufferedInputStream(new FileInputStream(pathToJpegImage), SEGMENT_READ_BUFFER_SIZE);
             try {
+                thumbnail = readEmbeddedThumbnail(new JpegSegmentReader(input), minimumWidth);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            MyLog.debug("Failed to read embedded thumbnail of {0}: {1}", pathToJpegImage, e.getMessage());
+        }
 
-                Bitmap convertedImageBitmap;
-                if (rotation == null) {
-                    // Thumbnail, scale down the image
-                    int scaledHeight = (int) (thumbnailWidth / ((double) imageBitmap.getWidth() / (double) imageBitmap.getHeight()));
-                    convertedImageBitmap = Bitmap.createScaledBitmap(imageBitmap, thumbnailWidth, scaledHeight, false);
-                } else {
-                    // Rotate the image
-                    Matrix conversionMatrix = new Matrix();
-                    conversionMatrix.postRotate(rotation.getRotationInDegrees());
-                    final boolean filter = true;
-                    // Note: It is not possible to scale down the image in this action, scaling down is done with the bitmapOptions above
-                    convertedImageBitmap = Bitmap.createBitmap(imageBitmap, 0, 0, imageBitmap.getWidth(), imageBitmap.getHeight(), conversionMatrix, filter);
-                }
+        if (thumbnail != null) {
+            embeddedThumbnailHitCount.incrementAndGet();
+            MyLog.debug("Using embedded thumbnail of {0} ({1,number,#} bytes)", pathToJpegImage, thumbnail.length);
+        } else {
+            embeddedThumbnailMissCount.incrementAndGet();
+        }
+        return thumbnail;
+    }
 
-                try {
-                    ByteArrayOutputStream jpegImageOutputStream = new ByteArrayOutputStream();
-                    convertedImageBitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_COMPRESSION_QUALITY, jpegImageOutputStream);
-                    convertedImageData = jpegImageOutputStream.toByteArray();
-                } finally {
-                    convertedImageBitmap.recycle();
+    /**
+     * Read the embedded thumbnail and the image dimensions from the start of a JPEG image, and
+     * check the thumbnail against them.
+     *
+     * @param reader       The segment reader of the JPEG image.
+     * @param minimumWidth The width the thumbnail must at least have.
+     * @return The JPEG data of the thumbnail, or null in case the image has no usable thumbnail.
+     * @throws IOException In case the image cannot be read.
+     */
+    private static byte[] readEmbeddedThumbnail(JpegSegmentReader reader, int minimumWidth) throws IOException {
+        if (!reader.readStartOfImage()) {
+            return null;
+        }
+        // The Exif segment comes first, the dimensions of the image follow in the start of frame segment.
+        byte[] thumbnail = null;
+        int[] imageDimensions = null;
+        while (imageDimensions == null) {
+            int marker = reader.nextSegment();
+            if (marker == JpegSegmentReader.MARKER_START_OF_SCAN || marker == JpegSegmentReader.MARKER_END_OF_IMAGE) {
+                return null;
+            } else if (marker == JpegSegmentReader.MARKER_APP1 && thumbnail == null) {
+                byte[] segment = reader.readSegment();
+                if (ExifSegment.isExifSegment(segment)) {
+                    thumbnail = new ExifSegment(segment).getThumbnail();
+                    if (thumbnail == null) {
+                        return null;
+                    }
                 }
-
-                if (rotation != null && convertedImageData != null) {
-                    MyLog.debug("Image converted to size {0,number,#} by {1,number,#} leading to size of {2,number,#} KB ", convertedImageBitmap.getWidth(), convertedImageBitmap.getHeight(), convertedImageData.length / 1024);
+            } else if (JpegSegmentReader.isStartOfFrame(marker)) {
+                if (thumbnail == null) {
+                    return null;
                 }
-            } finally {
-                imageBitmap.recycle();
+                imageDimensions = JpegSegmentReader.getFrameDimensions(reader.readSegment());
+            }
+        }
+
+        int[] thumbnailDimensions = getJpegDimensions(thumbnail);
+        if (thumbnailDimensions == null || thumbnailDimensions[0] < minimumWidth || imageDimensions[0] <= 0) {
+            return null;
+        }
+        // The height the thumbnail would have with the proportions of the image, within a pixel for rounding.
+        long proportionalHeight = (long) thumbnailDimensions[0] * imageDimensions[1] / imageDimensions[0];
+        if (Math.abs(proportionalHeight - thumbnailDimensions[1]) > 1) {
+            return null;
+        }
+        return thumbnail;
+    }
 
+    /**
+     * Get the dimensions of a JPEG image in memory.
+     *
+     * @param jpegData The JPEG image.
+     * @return An integer array with the width (index 0 in result) and height (index 1 in result),
+     * or null in case the data is not a JPEG image.
+     * @throws IOException In case the data is not a valid JPEG image.
+     */
+    public static int[] getJpegDimensions(byte[] jpegData) throws IOException {
+        JpegSegmentReader reader = new JpegSegmentReader(new ByteArrayInputStream(jpegData));
+        if (reader.readStartOfImage()) {
+            int marker = reader.nextSegment();
+            while (marker != JpegSegmentReader.MARKER_START_OF_SCAN && marker != JpegSegmentReader.MARKER_END_OF_IMAGE) {
+                if (JpegSegmentReader.isStartOfFrame(marker)) {
+                    return JpegSegmentReader.getFrameDimensions(reader.readSegment());
+                }
+                marker = reader.nextSegment();
             }
-        } finally {
-            imageInputStream.close();
         }
+        return null;
+    }
 
-        return convertedImageData;
+    /**
+     * Get the number of conversions that keep the pipeline busy: one per conversion thread, and
+     * one per read thread reading the next image.
+     *
+     * @return The number of conversions to execute at the same time.
+     */
+    public static int getConversionParallelism() {
+        return CONVERSION_THREAD_COUNT + READ_THREAD_COUNT;
+    }
+
+    /**
+     * Get a summary of the conversion statistics, for logging.
+     *
+     * @return The use of embedded thumbnails, the time conversions waited versus the time they took,
+     * the memory use, and the statistics of the stages of the pipeline.
+     */
+    public static String getConversionStatistics() {
+        ImagePipeline<?> pipeline = imagePipeline;
+        return "embedded thumbnails: " + embeddedThumbnailHitCount.get() + " used, " + embeddedThumbnailMissCount.get() + " not usable; "
+                + (pipeline != null ? pipeline.getStatistics() : "no conversions");
     }
 
     /**
@@ -131,52 +297,39 @@ public class MyImageUtil {
      * @throws IOException In case the image cannot be opened.
      */
     public static int[] getDimensions(String pathToImage) throws IOException {
-
-        BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
-        bitmapOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(pathToImage, bitmapOptions);
-        int[] result = new int[2];
-        result[0] = bitmapOptions.outWidth;
-        result[1] = bitmapOptions.outHeight;
-
-        return result;
+        ImageHeader imageHeader = getImageHeader(pathToImage);
+        return new int[]{imageHeader.getWidth(), imageHeader.getHeight()};
     }
 
     /**
-     * Determine the embedded orientation of a JPEG image. This method should only be called for
-     * JPEG images, as it inspects the Exif information.
+     * Get the dimensions, orientation and capture date of an image, reading only its header (see
+     * {@link ImageHeaderParser}). For formats the parser does not know, the dimensions are
+     * determined by the image codec of the platform.
      *
-     * @param pathToJpegImage The full path of the image whose EXIF data to check.
-     * @return The image orientation, always returns a value (expections are handled internally),
-     * ROTATE_NONE in case no value could be determined.
+     * @param pathToImage The image whose metadata to get.
+     * @return The metadata of the image (the mime type is null for formats the parser does not know).
+     * @throws IOException In case the image cannot be opened, or its header is invalid.
      */
-    public static ImageOrientation getOrientationForImage(String pathToJpegImage) {
-        ImageOrientation orientation = ImageOrientation.ROTATE_NONE;
-
-        try {
-            int exifOrientation = getExifOrientationForImage(pathToJpegImage);
-            orientation = ImageOrientation.getImageOrientationByExifInterfaceValue(exifOrientation);
-        } catch (Exception e) {
-            MyLog.error("Failed to get orientation, continuing with regular orientation", e);
+    public static ImageHeader getImageHeader(String pathToImage) throws IOException {
+        ImageHeader imageHeader = ImageHeaderParser.parse(pathToImage);
+        if (imageHeader == null) {
+            int[] dimensions = getImageCodec().getDimensions(pathToImage);
+            imageHeader = new ImageHeader(null, dimensions[0], dimensions[1], ImageOrientation.ROTATE_NONE, null);
         }
-
-        return orientation;
+        return imageHeader;
     }
 
     /**
-     * Determine the exif orientation value for an image file.
+     * Get the image codec.
      *
-     * @param pathToImage The path to a JPEG image.
-     * @return The Exif orientation value.
-     * @throws IOException In case the JPEG file could not be read, or the Exif information could not
-     *                     be extracted.
+     * @return The image codec of the platform.
      */
-    private static int getExifOrientationForImage(String pathToImage) throws IOException {
-        ExifInterface exif = new ExifInterface(pathToImage);
-        int exifOrientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-        MyLog.debug("Found Exif image orientation for file {0}: {1}", pathToImage, exifOrientation);
-
-        return exifOrientation;
+    private static ImageCodec<?> getImageCodec() {
+        ImageCodec<?> result = imageCodec;
+        if (result == null) {
+            throw new IllegalStateException("No image codec set");
+        }
+        return result;
     }
 
 }
@@ -1,6 +1,6 @@
 package com.sanderbos.simplephotowebserver.util;
 
-import android.util.Log;
+import com.sanderbos.simplephotowebserver.platform.LogWriter;
 
 import java.text.MessageFormat;
 
@@ -14,13 +14,35 @@ public class MyLog {
      */
     private static final String TAG = "com.sanderbos.photows";
 
+    /**
+     * Where the messages are written, the standard error stream until the platform sets its own.
+     */
+    private static volatile LogWriter logWriter = new LogWriter() {
+        @Override
+        public void write(int level, String tag, String message, Throwable throwable) {
+            System.err.println(tag + " " + level + " " + message);
+            if (throwable != null) {
+                throwable.printStackTrace();
+            }
+        }
+    };
+
+    /**
+     * Set where the log messages are written.
+     *
+     * @param writer The log writer of the platform.
+     */
+    public static void setLogWriter(LogWriter writer) {
+        logWriter = writer;
+    }
+
     /**
      * Log debug message.
      *
      * @param message The message to log.
      */
     public static void debug(String message) {
-        Log.d(TAG, message);
+        logWriter.write(LogWriter.DEBUG, TAG, message, null);
     }
 
     /**
@@ -39,7 +61,7 @@ public class MyLog {
      * @param message The message to log.
      */
     public static void info(String message) {
-        Log.i(TAG, message);
+        logWriter.write(LogWriter.INFO, TAG, message, null);
     }
 
     /**
@@ -58,7 +80,7 @@ public class MyLog {
      * @param message The message to log.
      */
     public static void warning(String message) {
-        Log.w(TAG, message);
+        logWriter.write(LogWriter.WARNING, TAG, message, null);
     }
 
     /**
@@ -67,7 +89,7 @@ public class MyLog {
      * @param message The message to log.
      */
     public static void error(String message) {
-        Log.e(TAG, message);
+        logWriter.write(LogWriter.ERROR, TAG, message, null);
     }
 
     /**
@@ -77,7 +99,7 @@ public class MyLog {
      * @param throwable The exception to log.
      */
     public static void error(String message, Throwable throwable) {
-        Log.e(TAG, message, throwable);
+        logWriter.write(LogWriter.ERROR, TAG, message, throwable);
     }
 
     /**
@@ -0,0 +1,79 @@
+package com.sanderbos.simplephotowebserver.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream of a file whose first bytes are replaced, such as a JPEG image with a changed header. Only
+ * the replaced bytes are kept in memory, the rest of the file is streamed. The available bytes are
+ * those of the whole remaining stream, so it can be served with a fixed length.
+ */
+public class PatchedFileInputStream extends InputStream {
+
+    /**
+     * The bytes that replace the start of the file, and the position in them.
+     */
+    private final byte[] head;
+    private int headPosition;
+
+    /**
+     * The file, positioned after the replaced bytes.
+     */
+    private final FileInputStream file;
+
+    /**
+     * Constructor.
+     *
+     * @param file The file to stream.
+     * @param head The bytes that replace the first bytes of the file (as many as there are).
+     * @throws IOException In case the file cannot be opened, or is shorter than the replaced bytes.
+     */
+    public PatchedFileInputStream(File file, byte[] head) throws IOException {
+        this.head = head;
+        this.file = new FileInputStream(file);
+        try {
+            long remaining = head.length;
+            while (remaining > 0) {
+                long skipped = this.file.skip(remaining);
+                if (skipped <= 0) {
+                    throw new IOException("File shorter than its replaced bytes: " + file);
+                }
+                remaining -= skipped;
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (headPosition < head.length) {
+            return head[headPosition++] & 0xFF;
+        }
+        return file.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (headPosition < head.length) {
+            int count = Math.min(length, head.length - headPosition);
+            System.arraycopy(head, headPosition, buffer, offset, count);
+            headPosition += count;
+            return count;
+        }
+        return file.read(buffer, offset, length);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return head.length - headPosition + file.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,96 @@
+package com.sanderbos.simplephotowebserver.util;
+
+/**
+ * Enumeration of the widths in which thumbnails are created, along with the name used for them in
+ * URLs. Thumbnails are displayed at the width of the smallest size, the larger sizes are for screens
+ * with more device pixels per css pixel (the browser picks one).
+ */
+public enum ThumbnailSize {
+
+    SMALL("small", 40),
+    MEDIUM("medium", 80),
+    LARGE("large", 120);
+
+    /**
+     * The size used when no (known) size is requested, the width at which thumbnails are displayed.
+     */
+    public static final ThumbnailSize DEFAULT = SMALL;
+
+    /**
+     * The largest size.
+     */
+    public static final ThumbnailSize LARGEST = LARGE;
+
+    /**
+     * The name of the size, as used in URLs.
+     */
+    private String name;
+
+    /**
+     * The width of the thumbnail in pixels.
+     */
+    private int width;
+
+    /**
+     * Constructor for enum values.
+     *
+     * @param name  The name of the size.
+     * @param width The width in pixels.
+     */
+    ThumbnailSize(String name, int width) {
+        this.name = name;
+        this.width = width;
+    }
+
+    /**
+     * Get the name of this size, as used in URLs.
+     *
+     * @return The name of the size.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the width of thumbnails of this size.
+     *
+     * @return The width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the enum value for a given size name.
+     *
+     * @param name The name of the size, may be null.
+     * @return The matching enum value, or null in case the name cannot be matched.
+     */
+    public static ThumbnailSize getThumbnailSizeByName(String name) {
+        ThumbnailSize result = null;
+        for (ThumbnailSize value : values()) {
+            if (value.getName().equals(name)) {
+                result = value;
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the largest size that a thumbnail of a given width can be served for.
+     *
+     * @param width The width of the thumbnail in pixels.
+     * @return The largest size with at most that width, or null in case the thumbnail is smaller
+     * than all sizes.
+     */
+    public static ThumbnailSize getLargestSizeForWidth(int width) {
+        ThumbnailSize result = null;
+        for (ThumbnailSize value : values()) {
+            if (value.getWidth() <= width && (result == null || value.getWidth() > result.getWidth())) {
+                result = value;
+            }
+        }
+        return result;
+    }
+}
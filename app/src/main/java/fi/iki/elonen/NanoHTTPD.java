@@ -9,20 +9,38 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
+import java.util.Queue;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -92,6 +110,15 @@ public abstract class NanoHTTPD {
      * block the socket reading thread forever (or as long the browser is open).
      */
     public static final int SOCKET_READ_TIMEOUT = 5000;
+    /**
+     * Time after which an idle keep-alive connection is closed by the selector engine (in milliseconds).
+     * Idle connections do not hold a thread in that engine, so this can be a lot longer than SOCKET_READ_TIMEOUT.
+     */
+    public static final int SELECTOR_IDLE_TIMEOUT = 30000;
+    /**
+     * Maximum size of a request (header plus body) buffered by the selector engine.
+     */
+    public static final int SELECTOR_MAX_REQUEST_SIZE = 1024 * 1024;
     /**
      * Common mime type for dynamic content: plain text
      */
@@ -104,11 +131,26 @@ public abstract class NanoHTTPD {
      * Pseudo-Parameter to use to store the actual query string in the parameters map for later re-processing.
      */
     private static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
+    /**
+     * The Date header line of the current second, shared by all responses.
+     */
+    private static volatile DateHeaderLine cachedDateHeaderLine;
     private final String hostname;
     private final int myPort;
     private ServerSocket myServerSocket;
-    private Set<Socket> openConnections = new HashSet<Socket>();
+    /**
+     * Registry of the open connections, with the limits that apply to them.
+     */
+    private ConnectionManager connectionManager = new ConnectionManager();
     private Thread myThread;
+    /**
+     * Whether start() uses the non-blocking selector engine instead of a thread per connection.
+     */
+    private boolean selectorEngineEnabled;
+    /**
+     * The running selector engine, if started with the selector engine enabled.
+     */
+    private SelectorEngine selectorEngine;
     /**
      * Pluggable strategy for asynchronously executing requests.
      */
@@ -144,6 +186,18 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Let the idle core threads of a pool stop after its keep alive time. The method is not
+     * available before Android 2.3 (API 9), there the core threads are kept.
+     */
+    private static void allowCoreThreadTimeOut(ThreadPoolExecutor executor) {
+        try {
+            executor.allowCoreThreadTimeOut(true);
+        } catch (NoSuchMethodError e) {
+            // Older platform, the threads stay.
+        }
+    }
+
     private static final void safeClose(Socket closeable) {
         if (closeable != null) {
             try {
@@ -162,13 +216,216 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Format a timestamp as an HTTP date (for example for Date or Last-Modified headers).
+     *
+     * @param timestamp milliseconds since the epoch.
+     * @return the date in RFC 1123 format.
+     */
+    public static String formatHttpDate(long timestamp) {
+        return createHttpDateFormat().format(new Date(timestamp));
+    }
+
+    /**
+     * Parse an HTTP date (for example an If-Modified-Since header value).
+     *
+     * @param httpDate the date in RFC 1123 format, may be null.
+     * @return milliseconds since the epoch, or -1 if the value cannot be parsed.
+     */
+    public static long parseHttpDate(String httpDate) {
+        if (httpDate != null) {
+            try {
+                return createHttpDateFormat().parse(httpDate.trim()).getTime();
+            } catch (java.text.ParseException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the encoded Date header line for the current time. The date only has second resolution,
+     * so it is formatted at most once per second.
+     */
+    private static byte[] getDateHeaderLine() {
+        long second = System.currentTimeMillis() / 1000;
+        DateHeaderLine cached = cachedDateHeaderLine;
+        if (cached == null || cached.second != second) {
+            cached = new DateHeaderLine(second, asciiBytes("Date: " + formatHttpDate(second * 1000) + "\r\n"));
+            cachedDateHeaderLine = cached;
+        }
+        return cached.line;
+    }
+
+    /**
+     * Encode a String that only contains ASCII characters.
+     */
+    private static byte[] asciiBytes(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static SimpleDateFormat createHttpDateFormat() {
+        SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return gmtFrmt;
+    }
+
+    /**
+     * A formatted Date header line, and the second it was formatted for.
+     */
+    private static final class DateHeaderLine {
+        final long second;
+        final byte[] line;
+
+        DateHeaderLine(long second, byte[] line) {
+            this.second = second;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Growable byte buffer a response header (and a small body) is assembled in, so it can be sent
+     * with a single write. Each thread keeps its own buffer.
+     */
+    private static final class ResponseBuffer {
+        private static final int INITIAL_SIZE = 1024;
+        /**
+         * A buffer that grew beyond this size is not kept for the next response.
+         */
+        private static final int MAXIMUM_RETAINED_SIZE = 32 * 1024;
+        private static final ThreadLocal<ResponseBuffer> BUFFERS = new ThreadLocal<ResponseBuffer>() {
+            @Override
+            protected ResponseBuffer initialValue() {
+                return new ResponseBuffer();
+            }
+        };
+
+        private byte[] buf = new byte[INITIAL_SIZE];
+        private int count;
+
+        static ResponseBuffer get() {
+            ResponseBuffer buffer = BUFFERS.get();
+            buffer.count = 0;
+            return buffer;
+        }
+
+        void release() {
+            count = 0;
+            if (buf.length > MAXIMUM_RETAINED_SIZE) {
+                buf = new byte[INITIAL_SIZE];
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > buf.length) {
+                byte[] grown = new byte[Math.max(buf.length * 2, count + extra)];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+        }
+
+        void append(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        /**
+         * Append a header name or value, ASCII is copied directly, anything else is UTF-8 encoded.
+         */
+        void append(String value) {
+            int length = value.length();
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    try {
+                        append(value.substring(i).getBytes("UTF-8"));
+                    } catch (UnsupportedEncodingException e) {
+                        // UTF-8 is always supported.
+                        throw new Error(e);
+                    }
+                    return;
+                }
+                buf[count++] = (byte) c;
+            }
+        }
+
+        void appendDecimal(long value) {
+            append(Long.toString(value));
+        }
+
+        /**
+         * Append exactly length bytes read from a stream (fewer if it ends early).
+         */
+        void readFrom(InputStream inputStream, int length) throws IOException {
+            ensureCapacity(length);
+            int end = count + length;
+            while (count < end) {
+                int read = inputStream.read(buf, count, end - count);
+                if (read <= 0) {
+                    break;
+                }
+                count += read;
+            }
+        }
+
+        /**
+         * Append length bytes read from a file at the given position.
+         */
+        void readFrom(FileChannel channel, long position, int length) throws IOException {
+            ensureCapacity(length);
+            ByteBuffer target = ByteBuffer.wrap(buf, count, length);
+            while (target.hasRemaining()) {
+                int read = channel.read(target, position + target.position() - count);
+                if (read <= 0) {
+                    throw new EOFException("File shorter than expected");
+                }
+            }
+            count += length;
+        }
+
+        void writeTo(OutputStream outputStream) throws IOException {
+            if (count > 0) {
+                outputStream.write(buf, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Copy a part of a file to an output stream through a heap buffer.
+     */
+    private static void copy(FileChannel source, long position, long count, OutputStream outputStream) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 16 * 1024));
+        while (count > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(count, buffer.capacity()));
+            int read = source.read(buffer, position);
+            if (read <= 0) {
+                throw new EOFException("File shorter than expected");
+            }
+            outputStream.write(buffer.array(), 0, read);
+            position += read;
+            count -= read;
+        }
+    }
+
     /**
      * Start the server.
      *
      * @throws IOException if the socket is in use.
      */
     public void start() throws IOException {
-        myServerSocket = new ServerSocket();
+        if (selectorEngineEnabled) {
+            startSelectorEngine();
+            return;
+        }
+        // Bound through a channel, so that accepted sockets have a SocketChannel to transfer files to.
+        myServerSocket = ServerSocketChannel.open().socket();
         myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
 
         myThread = new Thread(new Runnable() {
@@ -177,34 +434,43 @@ public abstract class NanoHTTPD {
                 do {
                     try {
                         final Socket finalAccept = myServerSocket.accept();
-                        registerConnection(finalAccept);
+                        final ConnectionManager.ManagedConnection connection = connectionManager.register(finalAccept);
+                        if (connection == null) {
+                            rejectConnection(finalAccept);
+                            continue;
+                        }
                         finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
                         final InputStream inputStream = finalAccept.getInputStream();
-                        asyncRunner.exec(new Runnable() {
-                            @Override
-                            public void run() {
-                                OutputStream outputStream = null;
-                                try {
-                                    outputStream = finalAccept.getOutputStream();
-                                    TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                    HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                    while (!finalAccept.isClosed()) {
-                                        session.execute();
-                                    }
-                                } catch (Exception e) {
-                                    // When the socket is closed by the client, we throw our own SocketException
-                                    // to break the  "keep alive" loop above.
-                                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                        e.printStackTrace();
+                        try {
+                            asyncRunner.exec(new Runnable() {
+                                @Override
+                                public void run() {
+                                    OutputStream outputStream = null;
+                                    try {
+                                        outputStream = new SocketOutputStream(finalAccept);
+                                        TempFileManager tempFileManager = tempFileManagerFactory.create();
+                                        HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
+                                        session.setConnection(connection);
+                                        while (!finalAccept.isClosed()) {
+                                            session.execute();
+                                        }
+                                    } catch (Exception e) {
+                                        // When the socket is closed by the client, we throw our own SocketException
+                                        // to break the  "keep alive" loop above.
+                                        if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                                            e.printStackTrace();
+                                        }
+                                    } finally {
+                                        safeClose(outputStream);
+                                        safeClose(inputStream);
+                                        safeClose(finalAccept);
+                                        unRegisterConnection(finalAccept);
                                     }
-                                } finally {
-                                    safeClose(outputStream);
-                                    safeClose(inputStream);
-                                    safeClose(finalAccept);
-                                    unRegisterConnection(finalAccept);
                                 }
-                            }
-                        });
+                            });
+                        } catch (RejectedExecutionException e) {
+                            rejectConnection(finalAccept);
+                        }
                     } catch (IOException e) {
                     }
                 } while (!myServerSocket.isClosed());
@@ -215,12 +481,50 @@ public abstract class NanoHTTPD {
         myThread.start();
     }
 
+    /**
+     * Start the server using the non-blocking selector engine (see {@link #setSelectorEngineEnabled(boolean)}).
+     *
+     * @throws IOException if the socket is in use.
+     */
+    private void startSelectorEngine() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        myServerSocket = serverChannel.socket();
+        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+
+        selectorEngine = new SelectorEngine(serverChannel);
+        myThread = new Thread(selectorEngine);
+        myThread.setDaemon(true);
+        myThread.setName("NanoHttpd Selector");
+        myThread.start();
+    }
+
+    /**
+     * Choose the connection handling engine, must be called before start().
+     * <p/>
+     * <p>By default (false) every connection is handled by its own thread from the async runner,
+     * which blocks on reading the socket for as long as the connection is kept alive. When enabled,
+     * a single selector thread reads all connections and only complete requests are handed to the
+     * async runner, so idle keep-alive connections do not hold a thread.</p>
+     *
+     * @param selectorEngineEnabled true to use the non-blocking selector engine.
+     */
+    public void setSelectorEngineEnabled(boolean selectorEngineEnabled) {
+        this.selectorEngineEnabled = selectorEngineEnabled;
+    }
+
+    public final boolean isSelectorEngineEnabled() {
+        return selectorEngineEnabled;
+    }
+
     /**
      * Stop the server.
      */
     public void stop() {
         try {
             safeClose(myServerSocket);
+            if (selectorEngine != null) {
+                selectorEngine.wakeup();
+            }
             closeAllConnections();
             if (myThread != null) {
                 myThread.join();
@@ -235,8 +539,8 @@ public abstract class NanoHTTPD {
      *
      * @param socket the {@link Socket} for the connection.
      */
-    public synchronized void registerConnection(Socket socket) {
-        openConnections.add(socket);
+    public void registerConnection(Socket socket) {
+        connectionManager.register(socket);
     }
 
     /**
@@ -245,17 +549,116 @@ public abstract class NanoHTTPD {
      * @param socket
      *            the {@link Socket} for the connection.
      */
-    public synchronized void unRegisterConnection(Socket socket) {
-        openConnections.remove(socket);
+    public void unRegisterConnection(Socket socket) {
+        connectionManager.unregister(socket);
     }
 
     /**
      * Forcibly closes all connections that are open.
      */
-    public synchronized void closeAllConnections() {
-        for (Socket socket : openConnections) {
+    public void closeAllConnections() {
+        connectionManager.closeAll();
+    }
+
+    /**
+     * Set the connection manager, with the connection limits to apply. Must be called before start().
+     *
+     * @param connectionManager the connection manager to use.
+     */
+    public void setConnectionManager(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    public final ConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Called on the listener thread when the async runner refused to take on a new connection, or
+     * when the maximum number of connections is reached.
+     * A short 503 response is written (so browsers can retry later) and the socket is closed.
+     *
+     * @param socket the {@link Socket} for the connection that was refused.
+     */
+    protected void rejectConnection(Socket socket) {
+        onConnectionRejected(socket);
+        OutputStream outputStream = null;
+        try {
+            outputStream = socket.getOutputStream();
+            outputStream.write(createServiceUnavailableResponse(null));
+        } catch (IOException ignored) {
+        } finally {
+            safeClose(outputStream);
             safeClose(socket);
+            unRegisterConnection(socket);
+        }
+    }
+
+    /**
+     * Override this to be notified when a connection is refused because the async runner
+     * is saturated or there are too many connections. By default this does nothing.
+     *
+     * @param socket the {@link Socket} for the connection that is about to be refused.
+     */
+    protected void onConnectionRejected(Socket socket) {
+    }
+
+    /**
+     * Override this to divide requests in priority classes, used when the async runner is a
+     * {@link PriorityAsyncRunner}. Class 0 is served first, higher classes are for bulk work. This
+     * is called once the request line and headers are parsed, so it should be cheap. By default
+     * all requests are in class 0.
+     *
+     * @param session the request, its body has not been read yet.
+     * @return the priority class of the request.
+     */
+    protected int getPriorityClass(IHTTPSession session) {
+        return 0;
+    }
+
+    /**
+     * Execute work for a request on the async runner, in the priority class of the request.
+     */
+    private void execPrioritized(Runnable code, IHTTPSession session) {
+        if (asyncRunner instanceof PriorityAsyncRunner) {
+            ((PriorityAsyncRunner) asyncRunner).exec(code, getPriorityClass(session));
+        } else {
+            asyncRunner.exec(code);
+        }
+    }
+
+    /**
+     * Have the current thread serve a request, within the limits of its client and in its priority
+     * class. This may wait for other requests of the same client or class.
+     *
+     * @param connection the connection of the request, or null.
+     * @return the value to pass to {@link #leaveRequest(int, ConnectionManager.ManagedConnection)}.
+     */
+    private int enterRequest(IHTTPSession session, ConnectionManager.ManagedConnection connection) {
+        PriorityAsyncRunner runner = asyncRunner instanceof PriorityAsyncRunner ? (PriorityAsyncRunner) asyncRunner : null;
+        if (connection != null) {
+            connection.getClient().enterRequest(runner);
+        }
+        return runner != null ? runner.enter(getPriorityClass(session)) : -1;
+    }
+
+    private void leaveRequest(int previousClass, ConnectionManager.ManagedConnection connection) {
+        if (asyncRunner instanceof PriorityAsyncRunner) {
+            ((PriorityAsyncRunner) asyncRunner).leave(previousClass);
+        }
+        if (connection != null) {
+            connection.getClient().leaveRequest();
+        }
+    }
+
+    /**
+     * @return true if the async runner is known to reject new work right now.
+     */
+    private boolean isAsyncRunnerSaturated() {
+        if (asyncRunner instanceof BoundedAsyncRunner) {
+            return ((BoundedAsyncRunner) asyncRunner).isSaturated();
         }
+        return asyncRunner instanceof PriorityAsyncRunner && ((PriorityAsyncRunner) asyncRunner).isSaturated();
     }
 
     public final int getListeningPort() {
@@ -315,6 +718,82 @@ public abstract class NanoHTTPD {
         return serve(session.getUri(), method, session.getHeaders(), parms, files);
     }
 
+    /**
+     * Decide whether a response may be gzip encoded, if the client accepts that. By default only
+     * textual content is compressed, images and other binary formats are usually compressed already.
+     *
+     * @param r the response about to be sent.
+     * @return true if the response should be compressed for clients that accept gzip.
+     */
+    protected boolean useGzipWhenAccepted(Response r) {
+        String mime = r.getMimeType();
+        if (mime == null || r.getStatus() == Response.Status.NOT_MODIFIED || r.getStatus() == Response.Status.NO_CONTENT) {
+            return false;
+        }
+        mime = mime.toLowerCase(Locale.US);
+        return mime.startsWith("text/") || mime.contains("javascript") || mime.contains("json") || mime.contains("xml");
+    }
+
+    /**
+     * Check whether an Accept-Encoding header value allows gzip.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding != null) {
+            StringTokenizer st = new StringTokenizer(acceptEncoding, ",");
+            while (st.hasMoreTokens()) {
+                String coding = st.nextToken().trim().toLowerCase(Locale.US);
+                String name = coding;
+                int parametersStart = coding.indexOf(';');
+                if (parametersStart >= 0) {
+                    name = coding.substring(0, parametersStart).trim();
+                }
+                if (("gzip".equals(name) || "x-gzip".equals(name)) && !coding.replace(" ", "").matches(".*;q=0(\\.0*)?$")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finish a response for the request it answers: add the cookies set while serving it, and apply
+     * the range and compression the request asks for.
+     *
+     * @param cookies the cookie handler of the request, null if it was never asked for.
+     */
+    private void prepareResponse(Response r, Method method, Map<String, String> headers, CookieHandler cookies) {
+        if (cookies != null) {
+            cookies.unloadQueue(r);
+        }
+        r.setRequestMethod(method);
+        if (method == Method.GET || method == Method.HEAD) {
+            r.applyRangeRequest(headers);
+        }
+        if (useGzipWhenAccepted(r)) {
+            r.addHeader("Vary", "Accept-Encoding");
+            r.setGzipEncoding(acceptsGzip(headers.get("accept-encoding")));
+        }
+    }
+
+    /**
+     * Compress data in gzip format, for example to keep a pre-compressed copy of static content.
+     *
+     * @param data the data to compress.
+     * @return the gzip encoded data.
+     */
+    public static byte[] gzip(byte[] data) {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 2 + 32);
+            GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+            gzipOutputStream.write(data);
+            gzipOutputStream.close();
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            // Cannot happen for in-memory streams.
+            throw new Error(e);
+        }
+    }
+
     /**
      * Decode percent encoded <code>String</code> values.
      *
@@ -330,6 +809,28 @@ public abstract class NanoHTTPD {
         return decoded;
     }
 
+    /**
+     * Decodes parameters in percent-encoded URI-format ( e.g. "name=Jack%20Daniels&pass=Single%20Malt" ) and
+     * adds them to given Map. NOTE: this doesn't support multiple identical keys due to the simplicity of Map.
+     */
+    private void decodeParms(String parms, Map<String, String> p) {
+        if (parms == null) {
+            return;
+        }
+
+        StringTokenizer st = new StringTokenizer(parms, "&");
+        while (st.hasMoreTokens()) {
+            String e = st.nextToken();
+            int sep = e.indexOf('=');
+            if (sep >= 0) {
+                p.put(decodePercent(e.substring(0, sep)).trim(),
+                        decodePercent(e.substring(sep + 1)));
+            } else {
+                p.put(decodePercent(e).trim(), "");
+            }
+        }
+    }
+
     /**
      * Decode parameters from a URL, handing the case where a single parameter name might have been
      * supplied several times, by return lists of values.  In general these lists will contain a single
@@ -387,94 +888,1734 @@ public abstract class NanoHTTPD {
 
     // ------------------------------------------------------------------------------- //
     //
-    // Temp file handling strategy.
+    // Non-blocking selector engine.
     //
     // ------------------------------------------------------------------------------- //
 
     /**
-     * Pluggable strategy for creating and cleaning up temporary files.
-     *
-     * @param tempFileManagerFactory new strategy for handling temp files.
+     * Connection handling engine that reads all connections from one Selector thread.
+     * <p/>
+     * <p>Request bytes are collected in a ByteBuffer per connection. Only when a complete request
+     * (the header and, if a content-length is given, the body) has been buffered, it is handed to
+     * the async runner, which runs a regular HTTPSession on it and writes the response. While a
+     * request is processed the connection is not read, afterwards it goes back to the selector.</p>
      */
-    public void setTempFileManagerFactory(TempFileManagerFactory tempFileManagerFactory) {
-        this.tempFileManagerFactory = tempFileManagerFactory;
-    }
+    private class SelectorEngine implements Runnable {
+        /**
+         * Maximum time the selector waits before checking for idle connections (in milliseconds).
+         */
+        private static final int IDLE_CHECK_INTERVAL = 1000;
+        private final ServerSocketChannel serverChannel;
+        private final Selector selector;
+        /**
+         * Connections whose request has been processed, to be handed back to the selector thread.
+         */
+        private final Queue<SelectorConnection> resumeQueue = new ConcurrentLinkedQueue<SelectorConnection>();
 
-    /**
-     * HTTP Request methods, with the ability to decode a <code>String</code> back to its enum value.
-     */
-    public enum Method {
-        GET, PUT, POST, DELETE, HEAD, OPTIONS;
+        SelectorEngine(ServerSocketChannel serverChannel) throws IOException {
+            this.serverChannel = serverChannel;
+            this.selector = Selector.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
 
-        static Method lookup(String method) {
-            for (Method m : Method.values()) {
-                if (m.toString().equalsIgnoreCase(method)) {
-                    return m;
+        @Override
+        public void run() {
+            try {
+                while (serverChannel.isOpen()) {
+                    selector.select(IDLE_CHECK_INTERVAL);
+                    resumeConnections();
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read((SelectorConnection) key.attachment());
+                        } else if (key.isWritable()) {
+                            ((SelectorConnection) key.attachment()).writePendingOutput();
+                        }
+                    }
+                    closeIdleConnections();
                 }
+            } catch (IOException e) {
+                // Server socket or selector failed, stop the engine.
+            } catch (ClosedSelectorException e) {
+                // Stopped.
+            } finally {
+                safeClose(serverChannel);
+                safeClose(selector);
             }
-            return null;
         }
-    }
-
-    /**
-     * Pluggable strategy for asynchronously executing requests.
-     */
-    public interface AsyncRunner {
-        void exec(Runnable code);
-    }
 
-    /**
-     * Factory to create temp file managers.
-     */
-    public interface TempFileManagerFactory {
-        TempFileManager create();
-    }
+        void wakeup() {
+            selector.wakeup();
+        }
 
-    // ------------------------------------------------------------------------------- //
+        private void accept() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            ConnectionManager.ManagedConnection managedConnection = connectionManager.register(channel.socket());
+            if (managedConnection == null) {
+                onConnectionRejected(channel.socket());
+                channel.configureBlocking(false);
+                // The send buffer of a new connection is empty, it takes the whole response.
+                channel.write(ByteBuffer.wrap(createServiceUnavailableResponse(null)));
+                safeClose(channel);
+                return;
+            }
+            channel.configureBlocking(false);
+            SelectorConnection connection = new SelectorConnection(channel, managedConnection);
+            managedConnection.setCloseable(connection);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+
+        private void read(SelectorConnection connection) {
+            try {
+                boolean newRequest = connection.buffer.position() == 0;
+                int read = connection.channel.read(connection.buffer);
+                if (read == -1) {
+                    // Client closed the connection.
+                    connection.close();
+                    return;
+                }
+                if (newRequest && read > 0) {
+                    connection.managedConnection.requestStarted();
+                } else {
+                    connection.managedConnection.touch();
+                }
+                dispatchIfComplete(connection);
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+
+        /**
+         * Hand the first buffered request of a connection to the async runner, if it is complete.
+         */
+        private void dispatchIfComplete(SelectorConnection connection) {
+            int requestLength = connection.getBufferedRequestLength();
+            if (requestLength == -1 || requestLength > SELECTOR_MAX_REQUEST_SIZE) {
+                // No end of header within the buffer, or a body that is too big for us.
+                connection.close();
+            } else if (requestLength == -2) {
+                // A chunked body, which is not collected: refuse it rather than read the body as the next request.
+                connection.closeAfterWriting(createLengthRequiredResponse(requestMethodOf(connection.buffer.array())));
+            } else if (requestLength > 0 && requestLength <= connection.buffer.position()) {
+                // Take the complete requests pipelined behind it as well, the session serves them concurrently
+                int nextLength;
+                while (requestLength < connection.buffer.position()
+                        && (nextLength = connection.getBufferedRequestLength(requestLength)) > 0
+                        && requestLength + nextLength <= connection.buffer.position()
+                        && requestLength + nextLength <= SELECTOR_MAX_REQUEST_SIZE) {
+                    requestLength += nextLength;
+                }
+                byte[] request = connection.takeRequest(requestLength);
+                connection.key.interestOps(0);
+                try {
+                    asyncRunner.exec(new SelectorRequestRunnable(connection, request));
+                } catch (RejectedExecutionException e) {
+                    onConnectionRejected(connection.channel.socket());
+                    connection.closeAfterWriting(createServiceUnavailableResponse(requestMethodOf(request)));
+                }
+            } else {
+                if (requestLength > connection.buffer.capacity()) {
+                    connection.growBuffer(requestLength);
+                }
+                connection.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void resume(SelectorConnection connection) {
+            resumeQueue.add(connection);
+            selector.wakeup();
+        }
+
+        private void resumeConnections() {
+            SelectorConnection connection;
+            while ((connection = resumeQueue.poll()) != null) {
+                if (connection.key.isValid()) {
+                    connection.busy = false;
+                    // Pipelined requests may already be buffered.
+                    dispatchIfComplete(connection);
+                }
+            }
+        }
+
+        /**
+         * Close connections that are idle for too long, or that did not complete a request header in time.
+         */
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof SelectorConnection) {
+                    SelectorConnection connection = (SelectorConnection) attachment;
+                    if (!connection.busy && connection.managedConnection.isExpired(now, SELECTOR_IDLE_TIMEOUT)) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Runs one complete request on a worker thread and writes the response.
+         */
+        private class SelectorRequestRunnable implements Runnable {
+            private final SelectorConnection connection;
+            private final byte[] request;
+
+            SelectorRequestRunnable(SelectorConnection connection, byte[] request) {
+                this.connection = connection;
+                this.request = request;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    // The session (and its header buffer) is kept for all requests of the connection
+                    if (connection.session == null) {
+                        connection.requestInput = new RequestInputStream();
+                        connection.outputStream = new ChannelOutputStream(connection);
+                        connection.session = new HTTPSession(tempFileManagerFactory.create(), connection.requestInput,
+                                connection.outputStream, connection.channel.socket().getInetAddress());
+                        connection.session.setConnection(connection.managedConnection);
+                    } else {
+                        connection.session.discardBufferedInput();
+                    }
+                    connection.requestInput.reset(request);
+                    do {
+                        connection.session.execute();
+                    } while (connection.session.hasBufferedInput());
+                    connection.outputStream.flush();
+                    if (connection.channel.isOpen()) {
+                        resume(connection);
+                    }
+                } catch (Exception e) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Input stream over the bytes of a single request, that can be pointed at the next request.
+     */
+    private static class RequestInputStream extends ByteArrayInputStream {
+        RequestInputStream() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] request) {
+            buf = request;
+            pos = 0;
+            mark = 0;
+            count = request.length;
+        }
+    }
+
+    /**
+     * State of one connection handled by the selector engine.
+     */
+    private class SelectorConnection implements Closeable {
+        private final SocketChannel channel;
+        private final ConnectionManager.ManagedConnection managedConnection;
+        private SelectionKey key;
+        /**
+         * Buffered request bytes, always kept in 'write mode' (position is the number of buffered bytes).
+         */
+        private ByteBuffer buffer = ByteBuffer.allocate(HTTPSession.BUFSIZE);
+        /**
+         * Whether a request of this connection is being processed by a worker thread.
+         */
+        private volatile boolean busy;
+        /**
+         * Selector used by the worker thread to wait until the socket can take more response bytes.
+         */
+        private Selector writeSelector;
+        /**
+         * A response the selector thread writes before it closes the connection, if any.
+         */
+        private ByteBuffer pendingOutput;
+        /**
+         * The session that parses the requests of this connection, created for the first request.
+         */
+        private HTTPSession session;
+        private RequestInputStream requestInput;
+        private OutputStream outputStream;
+
+        SelectorConnection(SocketChannel channel, ConnectionManager.ManagedConnection managedConnection) {
+            this.channel = channel;
+            this.managedConnection = managedConnection;
+        }
+
+        /**
+         * Determine the length of the first request in the buffer.
+         *
+         * @return The length of header and body, 0 if the header is not complete yet, -1 if
+         * the buffer is full without containing the end of the header, or -2 if the request has a
+         * chunked body (its length is not known from the header).
+         */
+        int getBufferedRequestLength() {
+            return getBufferedRequestLength(0);
+        }
+
+        /**
+         * Determine the length of the request that starts at the given position in the buffer.
+         */
+        int getBufferedRequestLength(int start) {
+            byte[] buf = buffer.array();
+            int rlen = buffer.position();
+            int headerEnd = 0;
+            for (int i = start; i + 3 < rlen; i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                    headerEnd = i + 4;
+                    break;
+                }
+            }
+            if (headerEnd == 0) {
+                return rlen - start >= HTTPSession.BUFSIZE ? -1 : 0;
+            }
+            if (findHeaderValue(buf, start, headerEnd, "\ntransfer-encoding:") >= 0) {
+                return -2;
+            }
+            return headerEnd - start + findContentLength(buf, start, headerEnd);
+        }
+
+        /**
+         * Find the value of the content-length header in the raw header bytes.
+         */
+        private int findContentLength(byte[] buf, int start, int headerEnd) {
+            int position = findHeaderValue(buf, start, headerEnd, "\ncontent-length:");
+            if (position < 0) {
+                return 0;
+            }
+            long value = 0;
+            while (position < headerEnd && buf[position] >= '0' && buf[position] <= '9' && value <= SELECTOR_MAX_REQUEST_SIZE) {
+                value = value * 10 + (buf[position] - '0');
+                position++;
+            }
+            return (int) Math.min(value, SELECTOR_MAX_REQUEST_SIZE + 1);
+        }
+
+        /**
+         * Find a header in the raw header bytes.
+         *
+         * @param header the line end and lowercase name of the header, including the colon.
+         * @return the position of the value (after leading spaces), or -1 if the header is not present.
+         */
+        private int findHeaderValue(byte[] buf, int start, int headerEnd, String header) {
+            byte[] name = header.getBytes();
+            for (int i = start; i + name.length < headerEnd; i++) {
+                int matched = 0;
+                while (matched < name.length && Character.toLowerCase((char) buf[i + matched]) == name[matched]) {
+                    matched++;
+                }
+                if (matched == name.length) {
+                    int position = i + matched;
+                    while (position < headerEnd && buf[position] == ' ') {
+                        position++;
+                    }
+                    return position;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Remove the first request from the buffer, keeping any bytes after it.
+         */
+        byte[] takeRequest(int requestLength) {
+            busy = true;
+            byte[] request = new byte[requestLength];
+            buffer.flip();
+            buffer.get(request);
+            buffer.compact();
+            return request;
+        }
+
+        void growBuffer(int capacity) {
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+
+        /**
+         * Write bytes from a worker thread, waiting for the socket to accept them.
+         */
+        void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                if (channel.write(data) == 0) {
+                    awaitWritable();
+                }
+            }
+        }
+
+        /**
+         * Transfer file data from a worker thread, waiting for the socket to accept it.
+         */
+        void transfer(FileChannel source, long position, long count) throws IOException {
+            while (count > 0) {
+                if (position >= source.size()) {
+                    throw new EOFException("File shorter than expected");
+                }
+                long transferred = source.transferTo(position, count, channel);
+                if (transferred == 0) {
+                    awaitWritable();
+                }
+                position += transferred;
+                count -= transferred;
+            }
+        }
+
+        private void awaitWritable() throws IOException {
+            if (writeSelector == null) {
+                writeSelector = Selector.open();
+                channel.register(writeSelector, SelectionKey.OP_WRITE);
+            }
+            if (writeSelector.select(SOCKET_READ_TIMEOUT) == 0) {
+                throw new SocketTimeoutException("Timeout writing response");
+            }
+            writeSelector.selectedKeys().clear();
+        }
+
+        /**
+         * Send a last response from the selector thread and close the connection. What the socket
+         * does not take right away is written when it becomes writable, so the response is not cut
+         * off (a client that stops reading is closed as idle).
+         */
+        void closeAfterWriting(byte[] data) {
+            pendingOutput = ByteBuffer.wrap(data);
+            busy = false;
+            writePendingOutput();
+        }
+
+        void writePendingOutput() {
+            try {
+                channel.write(pendingOutput);
+                if (pendingOutput.hasRemaining()) {
+                    managedConnection.touch();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            } catch (IOException ignored) {
+            }
+            close();
+        }
+
+        @Override
+        public void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            safeClose(channel);
+            safeClose(writeSelector);
+            unRegisterConnection(channel.socket());
+        }
+    }
+
+    /**
+     * OutputStream over a non-blocking connection of the selector engine.
+     */
+    private class ChannelOutputStream extends OutputStream implements FileTransferTarget {
+        private final SelectorConnection connection;
+
+        ChannelOutputStream(SelectorConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                connection.write(ByteBuffer.wrap(b, off, len));
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void transferFrom(FileChannel source, long position, long count) throws IOException {
+            try {
+                connection.transfer(source, position, count);
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+        }
+    }
+
+    /**
+     * OutputStream over a socket of the blocking engine, that can transfer files directly to the
+     * socket channel (if the socket has one).
+     */
+    private static class SocketOutputStream extends OutputStream implements FileTransferTarget {
+        private final OutputStream outputStream;
+        private final SocketChannel channel;
+
+        SocketOutputStream(Socket socket) throws IOException {
+            this.outputStream = socket.getOutputStream();
+            this.channel = socket.getChannel();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            outputStream.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            outputStream.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+        }
+
+        @Override
+        public void transferFrom(FileChannel source, long position, long count) throws IOException {
+            if (channel == null) {
+                copy(source, position, count, outputStream);
+                return;
+            }
+            outputStream.flush();
+            while (count > 0) {
+                long transferred = source.transferTo(position, count, channel);
+                if (transferred <= 0) {
+                    throw new EOFException("File shorter than expected");
+                }
+                position += transferred;
+                count -= transferred;
+            }
+        }
+    }
+
+    /**
+     * OutputStream that keeps a response within the bandwidth share of its client, by taking the
+     * data from the token bucket of the client in small pieces before it is written.
+     */
+    private static class ThrottledOutputStream extends OutputStream implements FileTransferTarget {
+        /**
+         * The largest piece of data written at once, so waits stay short and interleave well.
+         */
+        private static final int PIECE_SIZE = 16 * 1024;
+        /**
+         * Single bytes are taken from the bandwidth share in batches of this size.
+         */
+        private static final int BYTE_BATCH_SIZE = 1024;
+        private final OutputStream outputStream;
+        private final ConnectionManager.Client client;
+        /**
+         * Single bytes written that have not been taken from the bandwidth share yet.
+         */
+        private int pendingBytes;
+
+        ThrottledOutputStream(OutputStream outputStream, ConnectionManager.Client client) {
+            this.outputStream = outputStream;
+            this.client = client;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (++pendingBytes >= BYTE_BATCH_SIZE) {
+                consumePendingBytes();
+            }
+            outputStream.write(b);
+        }
+
+        private void consumePendingBytes() throws IOException {
+            if (pendingBytes > 0) {
+                client.consumeBandwidth(pendingBytes);
+                pendingBytes = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int size = Math.min(len, PIECE_SIZE);
+                client.consumeBandwidth(size);
+                outputStream.write(b, off, size);
+                off += size;
+                len -= size;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            consumePendingBytes();
+            outputStream.flush();
+        }
+
+        /**
+         * The underlying stream belongs to the connection, it is not closed with the response.
+         */
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        @Override
+        public void transferFrom(FileChannel source, long position, long count) throws IOException {
+            while (count > 0) {
+                long size = Math.min(count, 4 * PIECE_SIZE);
+                client.consumeBandwidth(size);
+                if (outputStream instanceof FileTransferTarget) {
+                    ((FileTransferTarget) outputStream).transferFrom(source, position, size);
+                } else {
+                    copy(source, position, size, outputStream);
+                }
+                position += size;
+                count -= size;
+            }
+        }
+    }
+
+    /**
+     * Get the request method from the raw bytes of a request.
+     */
+    private static Method requestMethodOf(byte[] request) {
+        int end = 0;
+        while (end < request.length && request[end] != ' ') {
+            end++;
+        }
+        return Method.lookup(new String(request, 0, end));
+    }
+
+    /**
+     * Create the raw bytes of the response sent when a connection is refused because the server is saturated.
+     *
+     * @param requestMethod The request method, if known.
+     */
+    private static byte[] createServiceUnavailableResponse(Method requestMethod) {
+        return createClosingResponse(Response.Status.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE: Server is busy, try again later.", requestMethod);
+    }
+
+    /**
+     * Create the raw bytes of the response sent when a request has a body without a content length,
+     * which the selector engine does not read.
+     *
+     * @param requestMethod The request method, if known.
+     */
+    private static byte[] createLengthRequiredResponse(Method requestMethod) {
+        return createClosingResponse(Response.Status.LENGTH_REQUIRED, "LENGTH REQUIRED: Send the request body with a Content-Length.", requestMethod);
+    }
+
+    private static byte[] createClosingResponse(Response.Status status, String message, Method requestMethod) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Response r = new Response(status, MIME_PLAINTEXT, message);
+        if (status == Response.Status.SERVICE_UNAVAILABLE) {
+            r.addHeader("Retry-After", "1");
+        }
+        r.addHeader("Connection", "close");
+        r.setRequestMethod(requestMethod);
+        r.send(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    // ------------------------------------------------------------------------------- //
+    //
+    // Temp file handling strategy.
+    //
+    // ------------------------------------------------------------------------------- //
+
+    /**
+     * Pluggable strategy for creating and cleaning up temporary files.
+     *
+     * @param tempFileManagerFactory new strategy for handling temp files.
+     */
+    public void setTempFileManagerFactory(TempFileManagerFactory tempFileManagerFactory) {
+        this.tempFileManagerFactory = tempFileManagerFactory;
+    }
+
+    /**
+     * HTTP Request methods, with the ability to decode a <code>String</code> back to its enum value.
+     */
+    public enum Method {
+        GET, PUT, POST, DELETE, HEAD, OPTIONS;
+
+        private static final Method[] VALUES = values();
+
+        static Method lookup(String method) {
+            for (Method m : VALUES) {
+                if (m.toString().equalsIgnoreCase(method)) {
+                    return m;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Look up a method directly from the bytes of a request line, without creating a String.
+         */
+        static Method lookup(byte[] buf, int offset, int length) {
+            for (Method m : VALUES) {
+                String name = m.name();
+                if (name.length() == length && regionMatchesIgnoreCase(buf, offset, name)) {
+                    return m;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Compare bytes with a String of ASCII letters (upper or lower case), ignoring case.
+     */
+    private static boolean regionMatchesIgnoreCase(byte[] buf, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.toLowerCase((char) (buf[offset + i] & 0xff)) != Character.toLowerCase(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pluggable strategy for asynchronously executing requests.
+     */
+    public interface AsyncRunner {
+        void exec(Runnable code);
+    }
+
+    /**
+     * Implemented by output streams that can take file data directly from a FileChannel (so the
+     * platform can use sendfile), instead of having it copied through a heap buffer.
+     */
+    public interface FileTransferTarget {
+        /**
+         * Write count bytes of source, starting at position, after any bytes already written to the stream.
+         */
+        void transferFrom(FileChannel source, long position, long count) throws IOException;
+    }
+
+    /**
+     * Factory to create temp file managers.
+     */
+    public interface TempFileManagerFactory {
+        TempFileManager create();
+    }
+
+    // ------------------------------------------------------------------------------- //
+
+    /**
+     * Temp file manager.
+     * <p/>
+     * <p>Temp file managers are created 1-to-1 with incoming requests, to create and cleanup
+     * temporary files created as a result of handling the request.</p>
+     */
+    public interface TempFileManager {
+        TempFile createTempFile() throws Exception;
+
+        void clear();
+    }
+
+    /**
+     * A temp file.
+     * <p/>
+     * <p>Temp files are responsible for managing the actual temporary storage and cleaning
+     * themselves up when no longer needed.</p>
+     */
+    public interface TempFile {
+        OutputStream open() throws Exception;
+
+        void delete() throws Exception;
+
+        String getName();
+    }
+
+    /**
+     * Default threading strategy for NanoHttpd.
+     * <p/>
+     * <p>By default, the server spawns a new Thread for every incoming request.  These are set
+     * to <i>daemon</i> status, and named according to the request number.  The name is
+     * useful when profiling the application.</p>
+     */
+    public static class DefaultAsyncRunner implements AsyncRunner {
+        private long requestCount;
+
+        @Override
+        public void exec(Runnable code) {
+            ++requestCount;
+            Thread t = new Thread(code);
+            t.setDaemon(true);
+            t.setName("NanoHttpd Request Processor (#" + requestCount + ")");
+            t.start();
+        }
+    }
 
     /**
-     * Temp file manager.
+     * Pooled threading strategy for NanoHttpd.
      * <p/>
-     * <p>Temp file managers are created 1-to-1 with incoming requests, to create and cleanup
-     * temporary files created as a result of handling the request.</p>
+     * <p>Connections are handled by a bounded pool of <i>daemon</i> worker threads. Every connection
+     * holds a thread for as long as it is kept alive, so threads are started up to
+     * <code>maximumPoolSize</code> before anything is queued: a new connection never waits behind idle
+     * ones while threads are available. Connections beyond that are queued (at most
+     * <code>queueCapacity</code>), anything beyond that is rejected with a
+     * {@link RejectedExecutionException}, so a burst of connections cannot exhaust memory.</p>
      */
-    public interface TempFileManager {
-        TempFile createTempFile() throws Exception;
+    public static class BoundedAsyncRunner implements AsyncRunner {
+        /**
+         * Idle time after which worker threads are stopped (in milliseconds).
+         */
+        private static final long KEEP_ALIVE_TIME = 30000;
+        private final ThreadPoolExecutor executor;
+        private final int queueCapacity;
+        private final AtomicLong requestCount = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        /**
+         * @param maximumPoolSize the number of worker threads.
+         * @param queueCapacity the number of connections that can wait for a thread before new ones are rejected.
+         */
+        public BoundedAsyncRunner(int maximumPoolSize, int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            // Core and maximum size are equal: the executor only starts threads beyond the core size
+            // once the queue is full.
+            this.executor = new ThreadPoolExecutor(maximumPoolSize, maximumPoolSize, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity), new WorkerThreadFactory());
+            allowCoreThreadTimeOut(executor);
+        }
+
+        @Override
+        public void exec(Runnable code) {
+            requestCount.incrementAndGet();
+            try {
+                executor.execute(code);
+            } catch (RejectedExecutionException e) {
+                rejectedCount.incrementAndGet();
+                throw e;
+            }
+        }
+
+        /**
+         * Stop accepting work, running connections are allowed to finish.
+         */
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        /**
+         * @return true if all worker threads are busy and the queue is full, so the next connection would be rejected.
+         */
+        public boolean isSaturated() {
+            return executor.getActiveCount() >= executor.getMaximumPoolSize() && executor.getQueue().remainingCapacity() == 0;
+        }
+
+        public int getActiveCount() {
+            return executor.getActiveCount();
+        }
+
+        public int getPoolSize() {
+            return executor.getPoolSize();
+        }
+
+        public int getMaximumPoolSize() {
+            return executor.getMaximumPoolSize();
+        }
+
+        public int getQueuedCount() {
+            return executor.getQueue().size();
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public long getRequestCount() {
+            return requestCount.get();
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+
+        /**
+         * Creates daemon worker threads, named according to their number (useful when profiling).
+         */
+        private static class WorkerThreadFactory implements ThreadFactory {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable code) {
+                Thread t = new Thread(code);
+                t.setDaemon(true);
+                t.setName("NanoHttpd Pooled Request Processor (#" + threadCount.incrementAndGet() + ")");
+                return t;
+            }
+        }
+    }
+
+    /**
+     * Prioritizing threading strategy for NanoHttpd.
+     * <p/>
+     * <p>Like {@link BoundedAsyncRunner}, work is handled by a bounded pool of <i>daemon</i> worker
+     * threads, but requests are divided in priority classes (0 is the most urgent, see
+     * {@link NanoHTTPD#getPriorityClass(IHTTPSession)}), each with a weight:</p>
+     * <ul>
+     * <li>Queued work is started in weighted fair order: while several classes are waiting, each
+     * gets a share of the threads that become free in proportion to its weight, so bulk work is
+     * not starved either.</li>
+     * <li>Work that is dispatched before its request is known (a new connection) is queued in
+     * class 0. Once the request line is parsed the request enters its own class: the thread
+     * priority is set accordingly, and the number of requests a class serves at the same time is
+     * limited to its weight relative to class 0 (a share of <code>maximumPoolSize</code>). A
+     * request that has to wait for its class (or for its client) does not count against the pool,
+     * so it does not hold up more urgent work: the pool starts another thread, up to
+     * {@link #setMaxBlockedThreads(int)} of them.</li>
+     * </ul>
+     * <p/>
+     * <p>With the blocking engine a connection keeps its thread while it waits for its next
+     * request, so idle keep-alive connections take threads from the pool. The selector engine does
+     * not hold a thread for an idle connection.</p>
+     */
+    public static class PriorityAsyncRunner implements AsyncRunner {
+        /**
+         * Idle time after which worker threads are stopped (in milliseconds).
+         */
+        private static final long KEEP_ALIVE_TIME = 30000;
+        /**
+         * Virtual time a queued task of weight 1 takes, in the weighted fair ordering.
+         */
+        private static final long STRIDE = 1 << 16;
+        private final ThreadPoolExecutor executor;
+        private final int maximumPoolSize;
+        private final int queueCapacity;
+        private final int[] weights;
+        private final int[] limits;
+        /**
+         * The threads started in place of threads waiting for their class or client, and the
+         * maximum number of them. Guarded by this.
+         */
+        private int blockedThreads;
+        private int maxBlockedThreads;
+        /**
+         * Per class the requests being served, the requests waiting for their class, and the
+         * virtual finish time of the last task queued. Guarded by this.
+         */
+        private final int[] activeCounts;
+        private final int[] waitingCounts;
+        private final long[] lastFinishTimes;
+        private long virtualTime;
+        private long sequence;
+        private final AtomicLong requestCount = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+        /**
+         * The class of the request the current thread is serving, if any.
+         */
+        private final ThreadLocal<Integer> currentClass = new ThreadLocal<Integer>();
+
+        /**
+         * @param maximumPoolSize the number of worker threads.
+         * @param queueCapacity the number of tasks that can wait for a thread before new work is rejected.
+         * @param weights the weight of each priority class, the number of weights is the number of classes.
+         */
+        public PriorityAsyncRunner(int maximumPoolSize, int queueCapacity, int... weights) {
+            if (weights.length == 0) {
+                throw new IllegalArgumentException("At least one priority class is needed");
+            }
+            this.maximumPoolSize = maximumPoolSize;
+            this.queueCapacity = queueCapacity;
+            this.maxBlockedThreads = maximumPoolSize;
+            this.weights = new int[weights.length];
+            this.limits = new int[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] <= 0) {
+                    throw new IllegalArgumentException("Weights must be positive");
+                }
+                this.weights[i] = weights[i];
+                this.limits[i] = Math.max(1, Math.min(maximumPoolSize, maximumPoolSize * weights[i] / weights[0]));
+            }
+            this.activeCounts = new int[weights.length];
+            this.waitingCounts = new int[weights.length];
+            this.lastFinishTimes = new long[weights.length];
+            // Core and maximum size are equal: threads are started before anything is queued, so the
+            // queue order decides only when all threads are busy.
+            this.executor = new ThreadPoolExecutor(maximumPoolSize, maximumPoolSize, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new BoundedAsyncRunner.WorkerThreadFactory()) {
+
+                @Override
+                protected void beforeExecute(Thread t, Runnable r) {
+                    taskStarted((PrioritizedTask) r);
+                    super.beforeExecute(t, r);
+                }
+            };
+            allowCoreThreadTimeOut(executor);
+        }
+
+        /**
+         * Execute work of which the request is not known yet, in class 0.
+         */
+        @Override
+        public void exec(Runnable code) {
+            exec(code, 0);
+        }
+
+        /**
+         * Execute work for a request of a known priority class.
+         */
+        public void exec(Runnable code, int priorityClass) {
+            requestCount.incrementAndGet();
+            PrioritizedTask task;
+            synchronized (this) {
+                if (executor.getQueue().size() >= queueCapacity && executor.getActiveCount() >= executor.getMaximumPoolSize()) {
+                    rejectedCount.incrementAndGet();
+                    throw new RejectedExecutionException("Queue is full");
+                }
+                int c = toClass(priorityClass);
+                long finishTime = Math.max(virtualTime, lastFinishTimes[c]) + STRIDE / weights[c];
+                lastFinishTimes[c] = finishTime;
+                task = new PrioritizedTask(code, c, finishTime, sequence++);
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                rejectedCount.incrementAndGet();
+                throw e;
+            }
+        }
+
+        private synchronized void taskStarted(PrioritizedTask task) {
+            virtualTime = Math.max(virtualTime, task.finishTime - STRIDE / weights[task.priorityClass]);
+        }
+
+        /**
+         * Called on the thread serving a request once its priority class is known. Waits while
+         * the class serves its maximum number of requests.
+         *
+         * @return the class the thread served before, to pass to {@link #leave(int)}.
+         */
+        public int enter(int priorityClass) {
+            int c = toClass(priorityClass);
+            Integer previous = currentClass.get();
+            synchronized (this) {
+                if (previous != null) {
+                    activeCounts[previous]--;
+                    notifyAll();
+                }
+                if (activeCounts[c] >= limits[c]) {
+                    waitingCounts[c]++;
+                    boolean replaced = beginBlocked();
+                    try {
+                        while (activeCounts[c] >= limits[c] && !executor.isShutdown()) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        waitingCounts[c]--;
+                        endBlocked(replaced);
+                    }
+                }
+                activeCounts[c]++;
+            }
+            currentClass.set(c);
+            Thread.currentThread().setPriority(Math.max(Thread.MIN_PRIORITY, Thread.NORM_PRIORITY - c));
+            return previous == null ? -1 : previous;
+        }
+
+        /**
+         * Called when the thread is done with the request it entered for.
+         *
+         * @param previousClass the value returned by {@link #enter(int)}.
+         */
+        public void leave(int previousClass) {
+            Integer c = currentClass.get();
+            if (c == null) {
+                return;
+            }
+            synchronized (this) {
+                activeCounts[c]--;
+                if (previousClass >= 0) {
+                    activeCounts[previousClass]++;
+                }
+                notifyAll();
+            }
+            if (previousClass >= 0) {
+                currentClass.set(previousClass);
+                Thread.currentThread().setPriority(Math.max(Thread.MIN_PRIORITY, Thread.NORM_PRIORITY - previousClass));
+            } else {
+                currentClass.remove();
+                Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
+            }
+        }
+
+        /**
+         * Called by a worker thread before it waits for something else than I/O, to make up for it:
+         * while it waits the pool may start another thread, unless the maximum number of those
+         * has been started.
+         *
+         * @return true if another thread may be started, to pass to {@link #endBlocked(boolean)}.
+         */
+        synchronized boolean beginBlocked() {
+            if (blockedThreads >= maxBlockedThreads) {
+                return false;
+            }
+            blockedThreads++;
+            executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+            executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+            return true;
+        }
+
+        synchronized void endBlocked(boolean replaced) {
+            if (!replaced) {
+                return;
+            }
+            blockedThreads--;
+            executor.setCorePoolSize(executor.getCorePoolSize() - 1);
+            executor.setMaximumPoolSize(executor.getMaximumPoolSize() - 1);
+        }
+
+        public synchronized int getMaxBlockedThreads() {
+            return maxBlockedThreads;
+        }
+
+        /**
+         * @param maxBlockedThreads the number of threads that may be started in place of threads
+         *                          waiting for their priority class or client (by default the
+         *                          maximum pool size), 0 to start none.
+         */
+        public synchronized void setMaxBlockedThreads(int maxBlockedThreads) {
+            this.maxBlockedThreads = maxBlockedThreads;
+        }
+
+        /**
+         * @return the number of threads started in place of waiting threads.
+         */
+        public synchronized int getBlockedThreadCount() {
+            return blockedThreads;
+        }
+
+        private int toClass(int priorityClass) {
+            return Math.max(0, Math.min(weights.length - 1, priorityClass));
+        }
+
+        /**
+         * Stop accepting work, running connections are allowed to finish.
+         */
+        public void shutdown() {
+            executor.shutdown();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return true if all worker threads are busy and the queue is full, so the next connection would be rejected.
+         */
+        public boolean isSaturated() {
+            return executor.getActiveCount() >= executor.getMaximumPoolSize() && executor.getQueue().size() >= queueCapacity;
+        }
+
+        public int getActiveCount() {
+            return executor.getActiveCount();
+        }
+
+        public int getPoolSize() {
+            return executor.getPoolSize();
+        }
+
+        public int getMaximumPoolSize() {
+            return maximumPoolSize;
+        }
+
+        public int getQueuedCount() {
+            return executor.getQueue().size();
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public long getRequestCount() {
+            return requestCount.get();
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+
+        /**
+         * @return the number of requests being served in a priority class.
+         */
+        public synchronized int getActiveCount(int priorityClass) {
+            return activeCounts[toClass(priorityClass)];
+        }
+
+        /**
+         * @return the number of requests waiting for their priority class.
+         */
+        public synchronized int getWaitingCount(int priorityClass) {
+            return waitingCounts[toClass(priorityClass)];
+        }
+
+        /**
+         * A queued task, ordered by its virtual finish time in the weighted fair ordering.
+         */
+        private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+            private final Runnable code;
+            private final int priorityClass;
+            private final long finishTime;
+            private final long sequence;
+
+            PrioritizedTask(Runnable code, int priorityClass, long finishTime, long sequence) {
+                this.code = code;
+                this.priorityClass = priorityClass;
+                this.finishTime = finishTime;
+                this.sequence = sequence;
+            }
+
+            @Override
+            public void run() {
+                code.run();
+            }
+
+            @Override
+            public int compareTo(PrioritizedTask other) {
+                if (finishTime != other.finishTime) {
+                    return finishTime < other.finishTime ? -1 : 1;
+                }
+                return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the open connections and the limits that apply to them.
+     * <p/>
+     * <p>The registry is a ConcurrentHashMap, so registering and removing connections does not take
+     * a global lock. The limits are disabled (0) by default, an idle timeout of 0 means the default of
+     * the engine ({@link #SOCKET_READ_TIMEOUT} or {@link #SELECTOR_IDLE_TIMEOUT}). When the maximum
+     * number of connections is reached, the connection that has been idle the longest is closed to
+     * make room; if none is idle, the new connection is refused.</p>
+     * <p/>
+     * <p>Connections are also accounted per client (remote address), so that one client cannot take
+     * the server from the others: the number of requests a client has served at the same time can
+     * be limited, and when several clients receive data at the same time and together exceed the
+     * shared bandwidth, it is divided equally between them, through a token bucket per client.</p>
+     */
+    public static class ConnectionManager {
+        /**
+         * Time after the last data sent in which a client counts as receiving (in milliseconds).
+         */
+        private static final long RECEIVING_PERIOD = 1000;
+        /**
+         * Fraction of a second of its bandwidth share that a client may send in a burst.
+         */
+        private static final int BURST_DIVISOR = 4;
+        private final ConcurrentHashMap<Socket, ManagedConnection> connections = new ConcurrentHashMap<Socket, ManagedConnection>();
+        /**
+         * The clients with open connections, guarded by itself when clients are added or removed.
+         */
+        private final Map<InetAddress, Client> clients = new HashMap<InetAddress, Client>();
+        private final AtomicInteger openCount = new AtomicInteger();
+        private final AtomicLong acceptedCount = new AtomicLong();
+        private final AtomicLong refusedCount = new AtomicLong();
+        private final AtomicLong evictedCount = new AtomicLong();
+        private final AtomicLong headerTimeoutCount = new AtomicLong();
+        private volatile int maxConnections;
+        private volatile int idleTimeout;
+        private volatile int maxRequestsPerConnection;
+        private volatile int headerReadTimeout;
+        private volatile int maxRequestsPerClient;
+        private volatile int sharedBandwidth;
+        /**
+         * Token bucket of the shared bandwidth, while it has tokens the clients are not limited.
+         * Guarded by sharedBandwidthLock.
+         */
+        private final Object sharedBandwidthLock = new Object();
+        private long sharedTokens;
+        private long sharedRefillTime;
+
+        /**
+         * Register a new connection.
+         *
+         * @param socket the socket of the connection.
+         * @return the connection state, or null if the connection must be refused.
+         */
+        public ManagedConnection register(Socket socket) {
+            if (maxConnections > 0 && openCount.get() >= maxConnections && !evictIdleConnection()) {
+                refusedCount.incrementAndGet();
+                return null;
+            }
+            ManagedConnection connection = new ManagedConnection(socket, registerClient(socket.getInetAddress()));
+            if (connections.put(socket, connection) == null) {
+                openCount.incrementAndGet();
+            }
+            acceptedCount.incrementAndGet();
+            return connection;
+        }
+
+        public void unregister(Socket socket) {
+            ManagedConnection connection = connections.remove(socket);
+            if (connection != null) {
+                openCount.decrementAndGet();
+                unregisterClient(connection.client);
+            }
+        }
+
+        private Client registerClient(InetAddress address) {
+            synchronized (clients) {
+                Client client = clients.get(address);
+                if (client == null) {
+                    client = new Client(address);
+                    clients.put(address, client);
+                }
+                client.connectionCount++;
+                return client;
+            }
+        }
+
+        private void unregisterClient(Client client) {
+            synchronized (clients) {
+                if (--client.connectionCount == 0) {
+                    clients.remove(client.address);
+                }
+            }
+        }
+
+        /**
+         * @return the clients that have open connections.
+         */
+        public List<Client> getClients() {
+            synchronized (clients) {
+                return new ArrayList<Client>(clients.values());
+            }
+        }
+
+        /**
+         * Take bytes that are about to be sent from the shared bandwidth. All data sent is taken from
+         * it, so it only has tokens left while the clients together send less than the shared bandwidth.
+         *
+         * @return true if they fit in it, false if the clients together send more than the shared bandwidth.
+         */
+        private boolean takeSharedBandwidth(long count, long now, int bandwidth) {
+            synchronized (sharedBandwidthLock) {
+                long burst = bandwidth / BURST_DIVISOR;
+                sharedTokens = Math.min(burst, sharedTokens + (now - sharedRefillTime) * bandwidth / 1000);
+                sharedRefillTime = now;
+                boolean fits = sharedTokens >= count;
+                sharedTokens = Math.max(-burst, sharedTokens - count);
+                return fits;
+            }
+        }
+
+        /**
+         * @return the bandwidth share of a client that is receiving data (in bytes per second), 0 if
+         * it is not limited because it is the only client receiving.
+         */
+        private int getBandwidthShare(Client receivingClient, long now) {
+            int bandwidth = sharedBandwidth;
+            if (bandwidth <= 0) {
+                return 0;
+            }
+            int receivingCount = 0;
+            synchronized (clients) {
+                for (Client client : clients.values()) {
+                    if (client == receivingClient || now - client.lastSendTime < RECEIVING_PERIOD) {
+                        receivingCount++;
+                    }
+                }
+            }
+            return receivingCount > 1 ? bandwidth / receivingCount : 0;
+        }
+
+        /**
+         * Forcibly close all open connections.
+         */
+        public void closeAll() {
+            for (ManagedConnection connection : connections.values()) {
+                connection.close();
+            }
+        }
+
+        /**
+         * Close the connection that has been waiting for a next request the longest.
+         */
+        private boolean evictIdleConnection() {
+            ManagedConnection oldest = null;
+            for (ManagedConnection connection : connections.values()) {
+                if (connection.idle && (oldest == null || connection.lastActivity < oldest.lastActivity)) {
+                    oldest = connection;
+                }
+            }
+            if (oldest == null) {
+                return false;
+            }
+            evictedCount.incrementAndGet();
+            oldest.close();
+            return true;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        /**
+         * @param maxConnections the maximum number of open connections, 0 for no limit.
+         */
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
 
-        void clear();
-    }
+        public int getIdleTimeout() {
+            return idleTimeout;
+        }
 
-    /**
-     * A temp file.
-     * <p/>
-     * <p>Temp files are responsible for managing the actual temporary storage and cleaning
-     * themselves up when no longer needed.</p>
-     */
-    public interface TempFile {
-        OutputStream open() throws Exception;
+        /**
+         * @param idleTimeout time a connection may wait for its next request (in milliseconds), 0 for the engine default.
+         */
+        public void setIdleTimeout(int idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
 
-        void delete() throws Exception;
+        public int getMaxRequestsPerConnection() {
+            return maxRequestsPerConnection;
+        }
 
-        String getName();
-    }
+        /**
+         * @param maxRequestsPerConnection the number of requests after which a connection is closed, 0 for no limit.
+         */
+        public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+            this.maxRequestsPerConnection = maxRequestsPerConnection;
+        }
 
-    /**
-     * Default threading strategy for NanoHttpd.
-     * <p/>
-     * <p>By default, the server spawns a new Thread for every incoming request.  These are set
-     * to <i>daemon</i> status, and named according to the request number.  The name is
-     * useful when profiling the application.</p>
-     */
-    public static class DefaultAsyncRunner implements AsyncRunner {
-        private long requestCount;
+        public int getHeaderReadTimeout() {
+            return headerReadTimeout;
+        }
 
-        @Override
-        public void exec(Runnable code) {
-            ++requestCount;
-            Thread t = new Thread(code);
-            t.setDaemon(true);
-            t.setName("NanoHttpd Request Processor (#" + requestCount + ")");
-            t.start();
+        /**
+         * @param headerReadTimeout time in which a request header must be received once it started (in milliseconds), 0 for no limit.
+         */
+        public void setHeaderReadTimeout(int headerReadTimeout) {
+            this.headerReadTimeout = headerReadTimeout;
+        }
+
+        public int getMaxRequestsPerClient() {
+            return maxRequestsPerClient;
+        }
+
+        /**
+         * @param maxRequestsPerClient the number of requests of one client that are served at the same time (more wait), 0 for no limit.
+         */
+        public void setMaxRequestsPerClient(int maxRequestsPerClient) {
+            this.maxRequestsPerClient = maxRequestsPerClient;
+        }
+
+        public int getSharedBandwidth() {
+            return sharedBandwidth;
+        }
+
+        /**
+         * @param sharedBandwidth the bandwidth that clients receiving at the same time share equally once they
+         *                        together exceed it (in bytes per second), 0 for no limit.
+         */
+        public void setSharedBandwidth(int sharedBandwidth) {
+            this.sharedBandwidth = sharedBandwidth;
+        }
+
+        public int getOpenConnectionCount() {
+            return openCount.get();
+        }
+
+        /**
+         * @return the number of open connections that are waiting for a next request.
+         */
+        public int getIdleConnectionCount() {
+            int idleCount = 0;
+            for (ManagedConnection connection : connections.values()) {
+                if (connection.idle) {
+                    idleCount++;
+                }
+            }
+            return idleCount;
+        }
+
+        public long getAcceptedCount() {
+            return acceptedCount.get();
+        }
+
+        public long getRefusedCount() {
+            return refusedCount.get();
+        }
+
+        public long getEvictedCount() {
+            return evictedCount.get();
+        }
+
+        public long getHeaderTimeoutCount() {
+            return headerTimeoutCount.get();
+        }
+
+        /**
+         * State of one registered connection.
+         */
+        public class ManagedConnection {
+            private final Socket socket;
+            private final Client client;
+            /**
+             * What to close to close the connection, the socket unless the engine sets something else.
+             */
+            private volatile Closeable closeable;
+            private volatile long lastActivity = System.currentTimeMillis();
+            /**
+             * A new connection is not idle: its first request is on its way (or waiting for a worker),
+             * it only becomes idle once a response has been sent. Until then it has the header read
+             * timeout to send its first request.
+             */
+            private volatile long requestStart = lastActivity;
+            private volatile boolean idle;
+            private volatile int requestCount;
+
+            ManagedConnection(Socket socket, Client client) {
+                this.socket = socket;
+                this.client = client;
+            }
+
+            void setCloseable(Closeable closeable) {
+                this.closeable = closeable;
+            }
+
+            /**
+             * Called before waiting for the next request, sets the idle timeout on a blocking socket.
+             */
+            void awaitRequest() throws SocketException {
+                if (isBlocking()) {
+                    socket.setSoTimeout(idleTimeout > 0 ? idleTimeout : SOCKET_READ_TIMEOUT);
+                }
+            }
+
+            /**
+             * Called when the first bytes of a request have been received.
+             */
+            void requestStarted() {
+                idle = false;
+                requestStart = System.currentTimeMillis();
+                lastActivity = requestStart;
+            }
+
+            /**
+             * Called before reading more of a request header, enforces the header read deadline.
+             */
+            void awaitHeader() throws IOException {
+                int timeout = SOCKET_READ_TIMEOUT;
+                if (headerReadTimeout > 0) {
+                    long remaining = requestStart + headerReadTimeout - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Request header not received in time");
+                    }
+                    timeout = (int) Math.min(remaining, timeout);
+                }
+                if (isBlocking()) {
+                    socket.setSoTimeout(timeout);
+                }
+            }
+
+            void headerTimedOut() {
+                headerTimeoutCount.incrementAndGet();
+            }
+
+            void touch() {
+                lastActivity = System.currentTimeMillis();
+            }
+
+            /**
+             * Called when the response to a request has been sent.
+             */
+            void requestCompleted() {
+                requestCount++;
+                idle = true;
+                lastActivity = System.currentTimeMillis();
+            }
+
+            /**
+             * @return true if the request being handled is the last one allowed on this connection.
+             */
+            boolean isLastRequest() {
+                return maxRequestsPerConnection > 0 && requestCount + 1 >= maxRequestsPerConnection;
+            }
+
+            /**
+             * Check whether the connection has been idle (or a request header has been incomplete)
+             * for too long.
+             */
+            boolean isExpired(long now, int defaultIdleTimeout) {
+                if (now - lastActivity > (idleTimeout > 0 ? idleTimeout : defaultIdleTimeout)) {
+                    return true;
+                }
+                if (!idle && headerReadTimeout > 0 && now - requestStart > headerReadTimeout) {
+                    headerTimedOut();
+                    return true;
+                }
+                return false;
+            }
+
+            private boolean isBlocking() {
+                return socket.getChannel() == null || socket.getChannel().isBlocking();
+            }
+
+            public Socket getSocket() {
+                return socket;
+            }
+
+            public Client getClient() {
+                return client;
+            }
+
+            public boolean isIdle() {
+                return idle;
+            }
+
+            public int getRequestCount() {
+                return requestCount;
+            }
+
+            public void close() {
+                safeClose(closeable != null ? closeable : socket);
+                unregister(socket);
+            }
+        }
+
+        /**
+         * State of one client, shared by all its connections.
+         */
+        public class Client {
+            private final InetAddress address;
+            /**
+             * Guarded by the clients map.
+             */
+            private int connectionCount;
+            /**
+             * Requests being served, guarded by this.
+             */
+            private int activeRequests;
+            /**
+             * Token bucket of the bandwidth share, guarded by this.
+             */
+            private long tokens;
+            private long lastRefillTime;
+            private volatile long lastSendTime;
+            private final AtomicLong requestCount = new AtomicLong();
+            private final AtomicLong bytesSent = new AtomicLong();
+            private final AtomicLong throttledTime = new AtomicLong();
+
+            Client(InetAddress address) {
+                this.address = address;
+            }
+
+            /**
+             * Called on the thread serving a request before it is served, waits while the client
+             * has the maximum number of requests served.
+             *
+             * @param runner the async runner, if it should start another thread while this one waits.
+             */
+            void enterRequest(PriorityAsyncRunner runner) {
+                requestCount.incrementAndGet();
+                synchronized (this) {
+                    if (maxRequestsPerClient > 0 && activeRequests >= maxRequestsPerClient) {
+                        boolean replaced = runner != null && runner.beginBlocked();
+                        try {
+                            while (maxRequestsPerClient > 0 && activeRequests >= maxRequestsPerClient) {
+                                wait();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            if (runner != null) {
+                                runner.endBlocked(replaced);
+                            }
+                        }
+                    }
+                    activeRequests++;
+                }
+            }
+
+            synchronized void leaveRequest() {
+                activeRequests--;
+                notifyAll();
+            }
+
+            /**
+             * Take bytes that are about to be sent from the bandwidth share of the client, waits until
+             * they fit in it.
+             */
+            void consumeBandwidth(long count) throws InterruptedIOException {
+                long now = System.currentTimeMillis();
+                lastSendTime = now;
+                bytesSent.addAndGet(count);
+                int bandwidth = sharedBandwidth;
+                if (bandwidth <= 0 || takeSharedBandwidth(count, now, bandwidth)) {
+                    // Not contended, the client may use what is left.
+                    return;
+                }
+                int share = getBandwidthShare(this, now);
+                if (share <= 0) {
+                    return;
+                }
+                long delay;
+                synchronized (this) {
+                    long burst = share / BURST_DIVISOR;
+                    tokens = Math.min(burst, tokens + (now - lastRefillTime) * share / 1000);
+                    lastRefillTime = now;
+                    tokens -= count;
+                    delay = tokens < 0 ? -tokens * 1000 / share : 0;
+                }
+                if (delay > 0) {
+                    throttledTime.addAndGet(delay);
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while sending");
+                    }
+                }
+            }
+
+            public InetAddress getAddress() {
+                return address;
+            }
+
+            public synchronized int getActiveRequestCount() {
+                return activeRequests;
+            }
+
+            public long getRequestCount() {
+                return requestCount.get();
+            }
+
+            public long getBytesSent() {
+                return bytesSent.get();
+            }
+
+            /**
+             * @return the total time responses to this client were held back to keep it within its bandwidth share (in milliseconds).
+             */
+            public long getThrottledTime() {
+                return throttledTime.get();
+            }
         }
     }
 
@@ -551,6 +2692,11 @@ public abstract class NanoHTTPD {
      * HTTP response. Return one of these from serve().
      */
     public static class Response {
+        private static final String RANGE_UNIT_PREFIX = "bytes=";
+        /**
+         * Requests with more ranges than this are answered with the whole file.
+         */
+        private static final int MAX_RANGES = 16;
         /**
          * HTTP status code after processing, e.g. "200 OK", HTTP_OK
          */
@@ -563,6 +2709,19 @@ public abstract class NanoHTTPD {
          * Data of the response, may be null.
          */
         private InputStream data;
+        /**
+         * Channel of the data, in case the response is a file.
+         */
+        private FileChannel fileData;
+        /**
+         * Length and modification time of the file, in case the response is a file.
+         */
+        private long fileLength;
+        private long fileLastModified;
+        /**
+         * First and last byte position of each range of the file to send, in case of a partial response.
+         */
+        private List<long[]> ranges;
         /**
          * Headers for the HTTP response. Use addHeader() to add lines.
          */
@@ -571,10 +2730,29 @@ public abstract class NanoHTTPD {
          * The request method that spawned this response.
          */
         private Method requestMethod;
+        /**
+         * Bodies up to this size are sent in the same write as the header.
+         */
+        private static final int SMALL_BODY_SIZE = 16 * 1024;
+        private static final byte[] CRLF = asciiBytes("\r\n");
+        private static final byte[] HEADER_SEPARATOR = asciiBytes(": ");
+        private static final byte[] CONTENT_TYPE_PREFIX = asciiBytes("Content-Type: ");
+        private static final byte[] CONTENT_LENGTH_PREFIX = asciiBytes("Content-Length: ");
+        private static final byte[] CONNECTION_KEEP_ALIVE = asciiBytes("Connection: keep-alive\r\n");
+        private static final byte[] CONTENT_ENCODING_GZIP = asciiBytes("Content-Encoding: gzip\r\n");
+        private static final byte[] TRANSFER_ENCODING_CHUNKED = asciiBytes("Transfer-Encoding: chunked\r\n");
         /**
          * Use chunkedTransfer
          */
         private boolean chunkedTransfer;
+        /**
+         * Send the data gzip encoded.
+         */
+        private boolean gzipEncoding;
+        /**
+         * The data in gzip encoded form, in case it was compressed beforehand (may be null).
+         */
+        private byte[] precompressedGzipData;
 
         /**
          * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
@@ -592,6 +2770,24 @@ public abstract class NanoHTTPD {
             this.data = data;
         }
 
+        /**
+         * Constructor for a response with the contents of a file. When the connection supports it, the
+         * file is transferred to the socket without being copied through the heap.
+         *
+         * @throws FileNotFoundException if the file cannot be opened.
+         */
+        public Response(IStatus status, String mimeType, File file) throws FileNotFoundException {
+            this.status = status;
+            this.mimeType = mimeType;
+            FileInputStream fileInputStream = new FileInputStream(file);
+            this.data = fileInputStream;
+            this.fileData = fileInputStream.getChannel();
+            this.fileLength = file.length();
+            this.fileLastModified = file.lastModified();
+            addHeader("Accept-Ranges", "bytes");
+            addHeader("Last-Modified", formatHttpDate(fileLastModified));
+        }
+
         /**
          * Convenience method that makes an InputStream out of given text.
          */
@@ -617,95 +2813,354 @@ public abstract class NanoHTTPD {
         }
 
         /**
-         * Sends given response to the socket.
+         * Turn a file response into a partial (206) response, if the request has a Range header.
+         * Supports single and multiple ranges, and ignores the Range header if an If-Range header
+         * does not match this response. Unsatisfiable ranges lead to a 416 response.
+         *
+         * @param requestHeaders the (lowercase) request headers.
+         */
+        protected void applyRangeRequest(Map<String, String> requestHeaders) {
+            String range = requestHeaders.get("range");
+            if (fileData == null || status != Status.OK || range == null) {
+                return;
+            }
+            String ifRange = requestHeaders.get("if-range");
+            if (ifRange != null && !matchesIfRange(ifRange.trim())) {
+                // The client has an outdated copy, send everything.
+                return;
+            }
+            List<long[]> requestedRanges = parseRanges(range.trim());
+            if (requestedRanges == null) {
+                // Syntactically invalid, ignore the header.
+                return;
+            }
+            if (requestedRanges.isEmpty()) {
+                status = Status.RANGE_NOT_SATISFIABLE;
+                addHeader("Content-Range", "bytes */" + fileLength);
+                safeClose(data);
+                data = null;
+                fileData = null;
+                return;
+            }
+            status = Status.PARTIAL_CONTENT;
+            ranges = requestedRanges;
+            if (ranges.size() == 1) {
+                addHeader("Content-Range", "bytes " + ranges.get(0)[0] + "-" + ranges.get(0)[1] + "/" + fileLength);
+            }
+        }
+
+        /**
+         * Check an If-Range value (an entity tag or a date) against the validators of this response.
+         */
+        private boolean matchesIfRange(String ifRange) {
+            if (ifRange.startsWith("W/")) {
+                // Weak tags never match for ranges.
+                return false;
+            }
+            if (ifRange.startsWith("\"")) {
+                String eTag = getHeaderIgnoreCase("etag");
+                return ifRange.equals(eTag);
+            }
+            long ifRangeDate = parseHttpDate(ifRange);
+            return ifRangeDate != -1 && ifRangeDate / 1000 == fileLastModified / 1000;
+        }
+
+        /**
+         * Parse a Range header value of the form bytes=first-last,first-,-suffixLength.
+         *
+         * @return the satisfiable ranges (empty if there are none), or null if the header is invalid.
+         */
+        private List<long[]> parseRanges(String range) {
+            if (!range.startsWith(RANGE_UNIT_PREFIX)) {
+                return null;
+            }
+            List<long[]> result = new ArrayList<long[]>();
+            StringTokenizer st = new StringTokenizer(range.substring(RANGE_UNIT_PREFIX.length()), ",");
+            while (st.hasMoreTokens()) {
+                String spec = st.nextToken().trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                try {
+                    long first;
+                    long last;
+                    if (dash == 0) {
+                        long suffixLength = Long.parseLong(spec.substring(1));
+                        first = Math.max(0, fileLength - suffixLength);
+                        last = fileLength - 1;
+                        if (suffixLength == 0) {
+                            continue;
+                        }
+                    } else {
+                        first = Long.parseLong(spec.substring(0, dash));
+                        last = (dash == spec.length() - 1) ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, fileLength - 1);
+                    }
+                    if (first < fileLength) {
+                        result.add(new long[]{first, last});
+                    }
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            if (result.size() > MAX_RANGES) {
+                return null;
+            }
+            return result;
+        }
+
+        /**
+         * Sends given response to the socket. The header is assembled in a reusable byte buffer and
+         * is sent with a single write, together with the body if that is small.
+         */
+        protected void send(OutputStream outputStream) {
+            String mime = mimeType;
+            String boundary = null;
+            if (ranges != null && ranges.size() > 1) {
+                boundary = "NANOHTTPD_BYTERANGES_" + Long.toHexString(System.nanoTime());
+                mime = "multipart/byteranges; boundary=" + boundary;
+            }
+
+            ResponseBuffer buffer = ResponseBuffer.get();
+            try {
+                if (status == null) {
+                    throw new Error("sendResponse(): Status can't be null.");
+                }
+                if (status instanceof Status) {
+                    buffer.append(((Status) status).statusLine);
+                } else {
+                    buffer.append("HTTP/1.1 " + status.getDescription() + " \r\n");
+                }
+
+                if (mime != null) {
+                    buffer.append(CONTENT_TYPE_PREFIX);
+                    buffer.append(mime);
+                    buffer.append(CRLF);
+                }
+
+                boolean dateSent = false;
+                boolean connectionSent = false;
+                boolean contentLengthSent = false;
+                if (header != null) {
+                    for (Map.Entry<String, String> entry : header.entrySet()) {
+                        String key = entry.getKey();
+                        dateSent |= key.equalsIgnoreCase("date");
+                        connectionSent |= key.equalsIgnoreCase("connection");
+                        contentLengthSent |= key.equalsIgnoreCase("content-length");
+                        buffer.append(key);
+                        buffer.append(HEADER_SEPARATOR);
+                        buffer.append(entry.getValue());
+                        buffer.append(CRLF);
+                    }
+                }
+
+                if (!dateSent) {
+                    buffer.append(getDateHeaderLine());
+                }
+                if (!connectionSent) {
+                    buffer.append(CONNECTION_KEEP_ALIVE);
+                }
+
+                boolean gzip = prepareGzipEncoding();
+                if (gzip) {
+                    buffer.append(CONTENT_ENCODING_GZIP);
+                }
+
+                if (ranges != null) {
+                    sendRanges(outputStream, buffer, boundary, contentLengthSent);
+                } else if (requestMethod != Method.HEAD && chunkedTransfer) {
+                    buffer.append(TRANSFER_ENCODING_CHUNKED);
+                    buffer.append(CRLF);
+                    buffer.writeTo(outputStream);
+                    sendAsChunked(outputStream, gzip && precompressedGzipData == null);
+                } else {
+                    long pending = getPendingDataLength();
+                    appendContentLengthHeader(buffer, pending, contentLengthSent);
+                    buffer.append(CRLF);
+                    sendAsFixedLength(outputStream, buffer, pending);
+                }
+                outputStream.flush();
+                safeClose(data);
+            } catch (IOException ioe) {
+                // Couldn't write? No can do.
+            } finally {
+                buffer.release();
+            }
+        }
+
+        /**
+         * Decide whether the data is sent gzip encoded. If so, the data is replaced by its compressed
+         * form, unless it is compressed while it is sent in chunks.
+         *
+         * @return true if the data is sent gzip encoded.
+         */
+        private boolean prepareGzipEncoding() throws IOException {
+            boolean gzip = gzipEncoding && data != null && fileData == null && ranges == null;
+            if (gzip) {
+                if (precompressedGzipData != null) {
+                    safeClose(data);
+                    data = new ByteArrayInputStream(precompressedGzipData);
+                } else if (!chunkedTransfer || requestMethod == Method.HEAD) {
+                    // Compress in memory, so the compressed length can be sent.
+                    InputStream plainData = data;
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed);
+                    copyStream(plainData, gzipOutputStream);
+                    gzipOutputStream.close();
+                    safeClose(plainData);
+                    data = new ByteArrayInputStream(compressed.toByteArray());
+                }
+            }
+            return gzip;
+        }
+
+        private long getPendingDataLength() throws IOException {
+            if (fileData != null) {
+                return fileData.size() - fileData.position();
+            }
+            return data != null ? data.available() : 0;
+        }
+
+        private void appendContentLengthHeader(ResponseBuffer buffer, long size, boolean alreadyPresent) {
+            // 204 and 304 responses never have a body, a length would be misleading.
+            if (status != Status.NO_CONTENT && status != Status.NOT_MODIFIED && !alreadyPresent) {
+                buffer.append(CONTENT_LENGTH_PREFIX);
+                buffer.appendDecimal(size);
+                buffer.append(CRLF);
+            }
+        }
+
+        private String getHeaderIgnoreCase(String name) {
+            for (Map.Entry<String, String> entry : header.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name)) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Send the data in chunks, compressing it on the fly if requested.
          */
-        protected void send(OutputStream outputStream) {
-            String mime = mimeType;
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-            try {
-                if (status == null) {
-                    throw new Error("sendResponse(): Status can't be null.");
-                }
-                PrintWriter pw = new PrintWriter(outputStream);
-                pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
-
-                if (mime != null) {
-                    pw.print("Content-Type: " + mime + "\r\n");
-                }
+        private void sendAsChunked(OutputStream outputStream, boolean compress) throws IOException {
+            ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
+            if (compress) {
+                GZIPOutputStream gzipOutputStream = new GZIPOutputStream(chunkedOutputStream, ChunkedOutputStream.CHUNK_SIZE);
+                copyStream(data, gzipOutputStream);
+                gzipOutputStream.finish();
+            } else {
+                copyStream(data, chunkedOutputStream);
+            }
+            chunkedOutputStream.finish();
+        }
 
-                if (header == null || header.get("Date") == null) {
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
-                }
+        private static void copyStream(InputStream inputStream, OutputStream outputStream) throws IOException {
+            byte[] buff = new byte[16 * 1024];
+            int read;
+            while ((read = inputStream.read(buff)) > 0) {
+                outputStream.write(buff, 0, read);
+            }
+        }
 
-                if (header != null) {
-                    for (String key : header.keySet()) {
-                        String value = header.get(key);
-                        pw.print(key + ": " + value + "\r\n");
+        /**
+         * Send the ranges of a partial file response, a single range as is, multiple ranges as multipart/byteranges.
+         * The file is read at the range positions, it is not skipped through.
+         */
+        private void sendRanges(OutputStream outputStream, ResponseBuffer buffer, String boundary, boolean contentLengthSent) throws IOException {
+            if (boundary == null) {
+                long[] range = ranges.get(0);
+                long count = range[1] - range[0] + 1;
+                appendContentLengthHeader(buffer, count, contentLengthSent);
+                buffer.append(CRLF);
+                if (requestMethod != Method.HEAD && count <= SMALL_BODY_SIZE) {
+                    buffer.readFrom(fileData, range[0], (int) count);
+                    buffer.writeTo(outputStream);
+                } else {
+                    buffer.writeTo(outputStream);
+                    if (requestMethod != Method.HEAD) {
+                        sendFilePart(outputStream, range[0], count);
                     }
                 }
+                return;
+            }
 
-                sendConnectionHeaderIfNotAlreadyPresent(pw, header);
-
-                if (requestMethod != Method.HEAD && chunkedTransfer) {
-                    sendAsChunked(outputStream, pw);
-                } else {
-                    int pending = data != null ? data.available() : 0;
-                    sendContentLengthHeaderIfNotAlreadyPresent(pw, header, pending);
-                    pw.print("\r\n");
-                    pw.flush();
-                    sendAsFixedLength(outputStream, pending);
-                }
-                outputStream.flush();
-                safeClose(data);
-            } catch (IOException ioe) {
-                // Couldn't write? No can do.
+            List<byte[]> partHeaders = createPartHeaders(boundary);
+            appendContentLengthHeader(buffer, getMultipartLength(partHeaders), contentLengthSent);
+            buffer.append(CRLF);
+            buffer.writeTo(outputStream);
+            if (requestMethod != Method.HEAD) {
+                sendMultipart(outputStream, partHeaders);
             }
         }
 
-        protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, int size) {
-            if (!headerAlreadySent(header, "content-length")) {
-                pw.print("Content-Length: "+ size +"\r\n");
+        /**
+         * Create the header of each part of a multipart/byteranges body, followed by the closing boundary.
+         */
+        private List<byte[]> createPartHeaders(String boundary) throws IOException {
+            List<byte[]> partHeaders = new ArrayList<byte[]>();
+            for (long[] range : ranges) {
+                String partHeader = "\r\n--" + boundary + "\r\n"
+                        + (mimeType != null ? "Content-Type: " + mimeType + "\r\n" : "")
+                        + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + fileLength + "\r\n\r\n";
+                partHeaders.add(partHeader.getBytes("US-ASCII"));
             }
+            partHeaders.add(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII"));
+            return partHeaders;
         }
 
-        protected void sendConnectionHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header) {
-            if (!headerAlreadySent(header, "connection")) {
-                pw.print("Connection: keep-alive\r\n");
+        private long getMultipartLength(List<byte[]> partHeaders) {
+            long contentLength = 0;
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                contentLength += partHeaders.get(i).length + range[1] - range[0] + 1;
             }
+            return contentLength + partHeaders.get(ranges.size()).length;
         }
 
-        private boolean headerAlreadySent(Map<String, String> header, String name) {
-            boolean alreadySent = false;
-            for (String headerName : header.keySet()) {
-                alreadySent |= headerName.equalsIgnoreCase(name);
+        private void sendMultipart(OutputStream outputStream, List<byte[]> partHeaders) throws IOException {
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                outputStream.write(partHeaders.get(i));
+                sendFilePart(outputStream, range[0], range[1] - range[0] + 1);
             }
-            return alreadySent;
+            outputStream.write(partHeaders.get(ranges.size()));
         }
 
-        private void sendAsChunked(OutputStream outputStream, PrintWriter pw) throws IOException {
-            pw.print("Transfer-Encoding: chunked\r\n");
-            pw.print("\r\n");
-            pw.flush();
-            int BUFFER_SIZE = 16 * 1024;
-            byte[] CRLF = "\r\n".getBytes();
-            byte[] buff = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = data.read(buff)) > 0) {
-                outputStream.write(String.format("%x\r\n", read).getBytes());
-                outputStream.write(buff, 0, read);
-                outputStream.write(CRLF);
+        private void sendFilePart(OutputStream outputStream, long position, long count) throws IOException {
+            if (outputStream instanceof FileTransferTarget) {
+                ((FileTransferTarget) outputStream).transferFrom(fileData, position, count);
+            } else {
+                copy(fileData, position, count, outputStream);
             }
-            outputStream.write(String.format("0\r\n\r\n").getBytes());
         }
 
-        private void sendAsFixedLength(OutputStream outputStream, int pending) throws IOException {
-            if (requestMethod != Method.HEAD && data != null) {
+        /**
+         * Send the header in the buffer and the data. A small body is added to the buffer, so header and
+         * body are sent with one write.
+         */
+        private void sendAsFixedLength(OutputStream outputStream, ResponseBuffer buffer, long pending) throws IOException {
+            boolean sendBody = requestMethod != Method.HEAD && (fileData != null || data != null);
+            if (sendBody && pending <= SMALL_BODY_SIZE) {
+                if (fileData != null) {
+                    buffer.readFrom(fileData, fileData.position(), (int) pending);
+                } else {
+                    buffer.readFrom(data, (int) pending);
+                }
+                buffer.writeTo(outputStream);
+                return;
+            }
+            buffer.writeTo(outputStream);
+            if (sendBody && fileData != null) {
+                sendFilePart(outputStream, fileData.position(), pending);
+            } else if (sendBody) {
                 int BUFFER_SIZE = 16 * 1024;
                 byte[] buff = new byte[BUFFER_SIZE];
                 while (pending > 0) {
-                    int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
+                    int read = data.read(buff, 0, (int) ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
                     if (read <= 0) {
                         break;
                     }
@@ -737,6 +3192,7 @@ public abstract class NanoHTTPD {
 
         public void setData(InputStream data) {
             this.data = data;
+            this.fileData = null;
         }
 
         public Method getRequestMethod() {
@@ -751,6 +3207,87 @@ public abstract class NanoHTTPD {
             this.chunkedTransfer = chunkedTransfer;
         }
 
+        public void setGzipEncoding(boolean gzipEncoding) {
+            this.gzipEncoding = gzipEncoding;
+        }
+
+        /**
+         * Provide the data in gzip encoded form as well, it is sent instead of compressing the data
+         * again if the client accepts gzip.
+         */
+        public void setPrecompressedGzipData(byte[] precompressedGzipData) {
+            this.precompressedGzipData = precompressedGzipData;
+        }
+
+        /**
+         * Output stream that writes everything written to it as chunks of a chunked transfer encoding.
+         * Each chunk is sent with a single write, size prefix and trailing CRLF included.
+         */
+        private static class ChunkedOutputStream extends FilterOutputStream {
+            static final int CHUNK_SIZE = 16 * 1024;
+            /**
+             * Room in front of the chunk data for the size prefix (up to 8 hex digits and CRLF).
+             */
+            private static final int PREFIX_SPACE = 10;
+            private static final byte[] HEX_DIGITS = asciiBytes("0123456789abcdef");
+            private static final byte[] FULL_CHUNK_PREFIX = asciiBytes(Integer.toHexString(CHUNK_SIZE) + "\r\n");
+            private static final byte[] LAST_CHUNK = asciiBytes("0\r\n\r\n");
+            private final byte[] chunk = new byte[PREFIX_SPACE + CHUNK_SIZE + 2];
+
+            ChunkedOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // An empty chunk would end the body, so nothing is written for len 0.
+                while (len > 0) {
+                    int size = Math.min(len, CHUNK_SIZE);
+                    int prefixStart = writePrefix(size);
+                    System.arraycopy(b, off, chunk, PREFIX_SPACE, size);
+                    chunk[PREFIX_SPACE + size] = '\r';
+                    chunk[PREFIX_SPACE + size + 1] = '\n';
+                    out.write(chunk, prefixStart, PREFIX_SPACE - prefixStart + size + 2);
+                    off += size;
+                    len -= size;
+                }
+            }
+
+            /**
+             * Write the size prefix in front of the chunk data.
+             *
+             * @return the start of the prefix in the chunk buffer.
+             */
+            private int writePrefix(int size) {
+                if (size == CHUNK_SIZE) {
+                    int prefixStart = PREFIX_SPACE - FULL_CHUNK_PREFIX.length;
+                    System.arraycopy(FULL_CHUNK_PREFIX, 0, chunk, prefixStart, FULL_CHUNK_PREFIX.length);
+                    return prefixStart;
+                }
+                int position = PREFIX_SPACE;
+                chunk[--position] = '\n';
+                chunk[--position] = '\r';
+                do {
+                    chunk[--position] = HEX_DIGITS[size & 0xf];
+                    size >>>= 4;
+                } while (size != 0);
+                return position;
+            }
+
+            /**
+             * Write the last (empty) chunk, the underlying stream is not closed.
+             */
+            void finish() throws IOException {
+                out.write(LAST_CHUNK);
+                out.flush();
+            }
+        }
+
         public interface IStatus {
             int getRequestStatus();
             String getDescription();
@@ -762,14 +3299,19 @@ public abstract class NanoHTTPD {
         public enum Status implements IStatus {
             SWITCH_PROTOCOL(101, "Switching Protocols"), OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
                     "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
-                    "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416,
-                    "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
+                    "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), LENGTH_REQUIRED(411, "Length Required"), RANGE_NOT_SATISFIABLE(416,
+                    "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error"), SERVICE_UNAVAILABLE(503, "Service Unavailable");
             private final int requestStatus;
             private final String description;
+            /**
+             * The encoded status line, including the line end.
+             */
+            private final byte[] statusLine;
 
             Status(int requestStatus, String description) {
                 this.requestStatus = requestStatus;
                 this.description = description;
+                this.statusLine = asciiBytes("HTTP/1.1 " + requestStatus + " " + description + " \r\n");
             }
 
             @Override
@@ -817,8 +3359,6 @@ public abstract class NanoHTTPD {
      * Handles one session, i.e. parses the HTTP request and returns the response.
      */
     public interface IHTTPSession {
-        void execute() throws IOException;
-
         Map<String, String> getParms();
 
         Map<String, String> getHeaders();
@@ -845,17 +3385,29 @@ public abstract class NanoHTTPD {
 
     protected class HTTPSession implements IHTTPSession {
         public static final int BUFSIZE = 8192;
+        /**
+         * Maximum number of pipelined requests that are served concurrently with the current one.
+         */
+        public static final int MAX_PIPELINED_REQUESTS = 16;
         private final TempFileManager tempFileManager;
         private final OutputStream outputStream;
         private PushbackInputStream inputStream;
+        /**
+         * Buffer the request header is read into, a session lives as long as its connection so the
+         * buffer is reused for all requests on that connection.
+         */
+        private final byte[] buf = new byte[BUFSIZE];
         private int splitbyte;
         private int rlen;
-        private String uri;
-        private Method method;
-        private Map<String, String> parms;
-        private Map<String, String> headers;
-        private CookieHandler cookies;
-        private String queryParameterString;
+        /**
+         * The current request, reused for every request on the connection.
+         */
+        private final ParsedRequest request = new ParsedRequest();
+        private String remoteIp;
+        /**
+         * The managed connection the requests are read from, if any.
+         */
+        private ConnectionManager.ManagedConnection connection;
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
@@ -864,30 +3416,32 @@ public abstract class NanoHTTPD {
         }
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
-            this.tempFileManager = tempFileManager;
-            this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
-            this.outputStream = outputStream;
-            String remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
-            headers = new HashMap<String, String>();
-
-            headers.put("remote-addr", remoteIp);
-            headers.put("http-client-ip", remoteIp);
+            this(tempFileManager, inputStream, outputStream);
+            remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
         }
 
-        @Override
+        /**
+         * Read one request from the connection, serve it and send the response (together with the
+         * requests pipelined behind it).
+         */
         public void execute() throws IOException {
             try {
                 // Read the first 8192 bytes.
                 // The full header should fit in here.
                 // Apache's default header limit is 8KB.
                 // Do NOT assume that a single read will get the entire header at once!
-                byte[] buf = new byte[BUFSIZE];
                 splitbyte = 0;
                 rlen = 0;
                 {
                     int read = -1;
                     try {
-                        read = inputStream.read(buf, 0, BUFSIZE);
+                        if (connection != null) {
+                            connection.awaitRequest();
+                        }
+                        // A request read with the previous one has been pushed back: take just that,
+                        // reading beyond it would wait for the client.
+                        int available = inputStream.available();
+                        read = inputStream.read(buf, 0, available > 0 ? Math.min(available, BUFSIZE) : BUFSIZE);
                     } catch (Exception e) {
                         safeClose(inputStream);
                         safeClose(outputStream);
@@ -899,48 +3453,73 @@ public abstract class NanoHTTPD {
                         safeClose(outputStream);
                         throw new SocketException("NanoHttpd Shutdown");
                     }
+                    if (connection != null) {
+                        connection.requestStarted();
+                    }
                     while (read > 0) {
                         rlen += read;
                         splitbyte = findHeaderEnd(buf, rlen);
                         if (splitbyte > 0)
                             break;
-                        read = inputStream.read(buf, rlen, BUFSIZE - rlen);
+                        if (connection != null) {
+                            try {
+                                connection.awaitHeader();
+                                read = inputStream.read(buf, rlen, BUFSIZE - rlen);
+                            } catch (SocketTimeoutException e) {
+                                // Header read deadline passed, drop the connection quietly.
+                                connection.headerTimedOut();
+                                throw new SocketException("NanoHttpd Shutdown");
+                            }
+                        } else {
+                            read = inputStream.read(buf, rlen, BUFSIZE - rlen);
+                        }
                     }
                 }
 
-                if (splitbyte < rlen) {
-                    inputStream.unread(buf, splitbyte, rlen - splitbyte);
-                }
+                // Decode the header into method, uri, query string and headers
+                request.reset();
+                decodeHeader(buf, 0, splitbyte > 0 ? splitbyte : rlen, request);
 
-                parms = new HashMap<String, String>();
-                if(null == headers) {
-                    headers = new HashMap<String, String>();
+                // Requests that were sent right behind this one can be served concurrently
+                List<PipelinedResponse> pipelined = null;
+                if (splitbyte > 0 && splitbyte < rlen && request.isPipelinable() && (connection == null || !connection.isLastRequest())) {
+                    pipelined = startPipelinedRequests();
                 }
 
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
-
-                // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, parms, headers);
-
-                method = Method.lookup(pre.get("method"));
-                if (method == null) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+                if (splitbyte < rlen) {
+                    inputStream.unread(buf, splitbyte, rlen - splitbyte);
                 }
 
-                uri = pre.get("uri");
-
-                cookies = new CookieHandler(headers);
-
-                // Ok, now do the serve()
-                Response r = serve(this);
-                if (r == null) {
-                    throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
-                } else {
-                    cookies.unloadQueue(r);
-                    r.setRequestMethod(method);
-                    r.send(outputStream);
+                int previousClass = enterRequest(this, connection);
+                try {
+                    // Ok, now do the serve()
+                    Response r = serve(this);
+                    if (r == null) {
+                        throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
+                    }
+                    boolean closeConnection = sendResponse(request, r);
+                    if (pipelined != null) {
+                        // Write the responses in the order of the requests
+                        for (PipelinedResponse pipelinedResponse : pipelined) {
+                            if (closeConnection) {
+                                pipelinedResponse.discard();
+                            } else {
+                                closeConnection = sendResponse(pipelinedResponse.request, pipelinedResponse.getResponse());
+                            }
+                        }
+                        pipelined = null;
+                    }
+                    if (closeConnection) {
+                        safeClose(outputStream);
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
+                } finally {
+                    leaveRequest(previousClass, connection);
+                    if (pipelined != null) {
+                        for (PipelinedResponse pipelinedResponse : pipelined) {
+                            pipelinedResponse.discard();
+                        }
+                    }
                 }
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)
@@ -960,6 +3539,64 @@ public abstract class NanoHTTPD {
             }
         }
 
+        /**
+         * Finish a response for a request and send it.
+         *
+         * @return true if the connection must be closed after this response.
+         */
+        private boolean sendResponse(ParsedRequest request, Response r) throws IOException {
+            prepareResponse(r, request.method, request.headers, request.cookies);
+            boolean closeConnection = "close".equalsIgnoreCase(request.headers.get("connection"))
+                    || (connection != null && connection.isLastRequest());
+            if (closeConnection) {
+                r.addHeader("Connection", "close");
+            }
+            r.send(connection != null ? new ThrottledOutputStream(outputStream, connection.getClient()) : outputStream);
+            if (connection != null) {
+                connection.requestCompleted();
+            }
+            return closeConnection;
+        }
+
+        /**
+         * Parse the complete requests that are buffered behind the current one, and start serving them
+         * on the async runner. Only requests without a body (GET and HEAD) are taken, at the first other
+         * request this stops, it is handled as usual once the ones before it have been answered.
+         *
+         * @return the pipelined requests, in order.
+         */
+        private List<PipelinedResponse> startPipelinedRequests() {
+            List<PipelinedResponse> pipelined = new ArrayList<PipelinedResponse>();
+            while (pipelined.size() < MAX_PIPELINED_REQUESTS) {
+                int requestEnd = findHeaderEnd(buf, splitbyte, rlen);
+                if (requestEnd == 0) {
+                    break;
+                }
+                ParsedRequest pipelinedRequest = new ParsedRequest();
+                pipelinedRequest.reset();
+                try {
+                    decodeHeader(buf, splitbyte, requestEnd, pipelinedRequest);
+                } catch (ResponseException e) {
+                    // Leave it, it gets its error response in turn.
+                    break;
+                }
+                if (!pipelinedRequest.isPipelinable()) {
+                    break;
+                }
+                splitbyte = requestEnd;
+                PipelinedResponse pipelinedResponse = new PipelinedResponse(pipelinedRequest);
+                pipelined.add(pipelinedResponse);
+                if (!isAsyncRunnerSaturated()) {
+                    try {
+                        execPrioritized(pipelinedResponse, pipelinedRequest);
+                    } catch (RejectedExecutionException e) {
+                        // It is run on this thread when its turn comes.
+                    }
+                }
+            }
+            return pipelined;
+        }
+
         @Override
         public void parseBody(Map<String, String> files) throws IOException, ResponseException {
             RandomAccessFile randomAccessFile = null;
@@ -969,8 +3606,8 @@ public abstract class NanoHTTPD {
                 randomAccessFile = getTmpBucket();
 
                 long size;
-                if (headers.containsKey("content-length")) {
-                    size = Integer.parseInt(headers.get("content-length"));
+                if (request.headers.containsKey("content-length")) {
+                    size = Integer.parseInt(request.headers.get("content-length"));
                 } else if (splitbyte < rlen) {
                     size = rlen - splitbyte;
                 } else {
@@ -997,9 +3634,9 @@ public abstract class NanoHTTPD {
 
                 // If the method is POST, there may be parameters
                 // in data section, too, read it:
-                if (Method.POST.equals(method)) {
+                if (Method.POST.equals(request.method)) {
                     String contentType = "";
-                    String contentTypeHeader = headers.get("content-type");
+                    String contentTypeHeader = request.headers.get("content-type");
 
                     StringTokenizer st = null;
                     if (contentTypeHeader != null) {
@@ -1022,7 +3659,7 @@ public abstract class NanoHTTPD {
                             boundary = boundary.substring(1, boundary.length() - 1);
                         }
 
-                        decodeMultipartData(boundary, fbuf, in, parms, files);
+                        decodeMultipartData(boundary, fbuf, in, getParms(), files);
                     } else {
                         String postLine = "";
                         StringBuilder postLineBuffer = new StringBuilder();
@@ -1036,13 +3673,14 @@ public abstract class NanoHTTPD {
                         postLine = postLineBuffer.toString().trim();
                         // Handle application/x-www-form-urlencoded
                         if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
-                            decodeParms(postLine, parms);
+                            request.queryParameterString = postLine;
+                            decodeParms(postLine, getParms());
                         } else if (postLine.length() != 0) {
                             // Special case for raw POST data => create a special files entry "postData" with raw content data
                             files.put("postData", postLine);
                         }
                     }
-                } else if (Method.PUT.equals(method)) {
+                } else if (Method.PUT.equals(request.method)) {
                     files.put("content", saveTmpFile(fbuf, 0, fbuf.limit()));
                 }
             } finally {
@@ -1052,57 +3690,74 @@ public abstract class NanoHTTPD {
         }
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * Decodes the request line and headers directly from the header bytes. Only the uri, the raw
+         * query string and the header names and values are turned into Strings, parameters are decoded
+         * when they are asked for.
          */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms, Map<String, String> headers)
-                throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
-                }
-
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-                }
+        private void decodeHeader(byte[] buf, int start, int length, ParsedRequest request) throws ResponseException {
+            // Read the request line
+            int lineEnd = findLineEnd(buf, start, length);
+
+            int methodStart = skipWhitespace(buf, start, lineEnd);
+            int methodEnd = findWhitespace(buf, methodStart, lineEnd);
+            if (methodStart == methodEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
 
-                pre.put("method", st.nextToken());
+            int uriStart = skipWhitespace(buf, methodEnd, lineEnd);
+            int uriEnd = findWhitespace(buf, uriStart, lineEnd);
+            if (uriStart == uriEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-                }
+            Method method = Method.lookup(buf, methodStart, methodEnd - methodStart);
+            if (method == null) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+            }
 
-                String uri = st.nextToken();
+            // Split off the query string, the parameters in it are decoded on first use
+            request.method = method;
+            int qmi = indexOf(buf, uriStart, uriEnd, '?');
+            if (qmi >= 0) {
+                request.queryParameterString = toHeaderString(buf, qmi + 1, uriEnd);
+                request.uri = decodeUriPath(buf, uriStart, qmi);
+            } else {
+                request.queryParameterString = null;
+                request.uri = decodeUriPath(buf, uriStart, uriEnd);
+            }
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
-
-                // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
-                // NOTE: this now forces header names lowercase since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    String line = in.readLine();
-                    while (line != null && line.trim().length() > 0) {
-                        int p = line.indexOf(':');
-                        if (p >= 0)
-                            headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                        line = in.readLine();
+            // If there's another token, it's protocol version,
+            // followed by HTTP headers. Ignore version but parse headers.
+            // NOTE: this now forces header names lowercase since they are
+            // case insensitive and vary by client.
+            if (skipWhitespace(buf, uriEnd, lineEnd) < lineEnd) {
+                int lineStart = lineEnd + 1;
+                while (lineStart < length) {
+                    lineEnd = findLineEnd(buf, lineStart, length);
+                    int contentStart = skipWhitespace(buf, lineStart, lineEnd);
+                    int contentEnd = trimEnd(buf, contentStart, lineEnd);
+                    if (contentStart == contentEnd) {
+                        break;
                     }
+                    int p = indexOf(buf, lineStart, contentEnd, ':');
+                    if (p >= 0) {
+                        int valueStart = skipWhitespace(buf, p + 1, contentEnd);
+                        request.headers.put(toHeaderName(buf, contentStart, trimEnd(buf, contentStart, p)), toHeaderString(buf, valueStart, contentEnd));
+                    }
+                    lineStart = lineEnd + 1;
                 }
+            }
+        }
 
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+        /**
+         * Decode the path part of a request uri, percent decoding is skipped if it is not needed.
+         */
+        private String decodeUriPath(byte[] buf, int start, int end) {
+            String path = toHeaderString(buf, start, end);
+            if (indexOf(buf, start, end, '%') >= 0 || indexOf(buf, start, end, '+') >= 0) {
+                path = decodePercent(path);
             }
+            return path;
         }
 
         /**
@@ -1183,7 +3838,14 @@ public abstract class NanoHTTPD {
          * Find byte index separating header from body. It must be the last byte of the first two sequential new lines.
          */
         private int findHeaderEnd(final byte[] buf, int rlen) {
-            int splitbyte = 0;
+            return findHeaderEnd(buf, 0, rlen);
+        }
+
+        /**
+         * Find the end of a header that starts at the given position, 0 if it is not complete.
+         */
+        private int findHeaderEnd(final byte[] buf, int start, int rlen) {
+            int splitbyte = start;
             while (splitbyte + 3 < rlen) {
                 if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
                     return splitbyte + 4;
@@ -1270,51 +3932,48 @@ public abstract class NanoHTTPD {
         }
 
         /**
-         * Decodes parameters in percent-encoded URI-format ( e.g. "name=Jack%20Daniels&pass=Single%20Malt" ) and
-         * adds them to given Map. NOTE: this doesn't support multiple identical keys due to the simplicity of Map.
+         * Drop input that is still buffered, used before the session is fed the next request.
          */
-        private void decodeParms(String parms, Map<String, String> p) {
-            if (parms == null) {
-                queryParameterString = "";
-                return;
+        void discardBufferedInput() throws IOException {
+            int available;
+            while ((available = inputStream.available()) > 0) {
+                inputStream.skip(available);
             }
+        }
 
-            queryParameterString = parms;
-            StringTokenizer st = new StringTokenizer(parms, "&");
-            while (st.hasMoreTokens()) {
-                String e = st.nextToken();
-                int sep = e.indexOf('=');
-                if (sep >= 0) {
-                    p.put(decodePercent(e.substring(0, sep)).trim(),
-                            decodePercent(e.substring(sep + 1)));
-                } else {
-                    p.put(decodePercent(e).trim(), "");
-                }
-            }
+        void setConnection(ConnectionManager.ManagedConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return true if more request bytes are buffered, that can be executed without waiting for input.
+         */
+        boolean hasBufferedInput() throws IOException {
+            return inputStream.available() > 0;
         }
 
         @Override
         public final Map<String, String> getParms() {
-            return parms;
+            return request.getParms();
         }
 
         public String getQueryParameterString() {
-            return queryParameterString;
+            return request.getQueryParameterString();
         }
 
         @Override
         public final Map<String, String> getHeaders() {
-            return headers;
+            return request.getHeaders();
         }
 
         @Override
         public final String getUri() {
-            return uri;
+            return request.getUri();
         }
 
         @Override
         public final Method getMethod() {
-            return method;
+            return request.getMethod();
         }
 
         @Override
@@ -1324,8 +3983,247 @@ public abstract class NanoHTTPD {
 
         @Override
         public CookieHandler getCookies() {
-            return cookies;
+            return request.getCookies();
+        }
+
+        /**
+         * The parsed request line and headers of one request. The session reuses one for all its
+         * requests, pipelined requests get their own, so they can be served concurrently.
+         */
+        private class ParsedRequest implements IHTTPSession {
+            private final Map<String, String> headers = new HashMap<String, String>();
+            private Method method;
+            private String uri;
+            private String queryParameterString;
+            /**
+             * The parameters, decoded from the query string on first use.
+             */
+            private Map<String, String> parms;
+            /**
+             * The cookie handler, only created when asked for.
+             */
+            private CookieHandler cookies;
+
+            void reset() {
+                parms = null;
+                cookies = null;
+                headers.clear();
+                if (remoteIp != null) {
+                    headers.put("remote-addr", remoteIp);
+                    headers.put("http-client-ip", remoteIp);
+                }
+            }
+
+            /**
+             * @return true if this request can be served while the requests before it are still
+             * being served: it reads nothing and leaves the connection open.
+             */
+            boolean isPipelinable() {
+                String contentLength = headers.get("content-length");
+                return (method == Method.GET || method == Method.HEAD)
+                        && (contentLength == null || "0".equals(contentLength.trim()))
+                        && !headers.containsKey("transfer-encoding")
+                        && !"close".equalsIgnoreCase(headers.get("connection"));
+            }
+
+            @Override
+            public Map<String, String> getParms() {
+                if (parms == null) {
+                    parms = new HashMap<String, String>();
+                    decodeParms(queryParameterString, parms);
+                }
+                return parms;
+            }
+
+            @Override
+            public Map<String, String> getHeaders() {
+                return headers;
+            }
+
+            @Override
+            public String getUri() {
+                return uri;
+            }
+
+            @Override
+            public String getQueryParameterString() {
+                return queryParameterString;
+            }
+
+            @Override
+            public Method getMethod() {
+                return method;
+            }
+
+            /**
+             * Pipelined requests have no body.
+             */
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            @Override
+            public CookieHandler getCookies() {
+                if (cookies == null) {
+                    cookies = new CookieHandler(headers);
+                }
+                return cookies;
+            }
+
+            @Override
+            public void parseBody(Map<String, String> files) {
+                // Pipelined requests have no body.
+            }
+        }
+
+        /**
+         * Serves a pipelined request, on the async runner or, if it has not started by the time its
+         * response is to be sent, on the session thread itself.
+         */
+        private class PipelinedResponse extends FutureTask<Response> {
+            private final ParsedRequest request;
+            /**
+             * Whether the response will not be sent, guarded by this.
+             */
+            private boolean discarded;
+
+            PipelinedResponse(final ParsedRequest request) {
+                super(new Callable<Response>() {
+                    @Override
+                    public Response call() {
+                        return serve(request);
+                    }
+                });
+                this.request = request;
+            }
+
+            /**
+             * Wait for the response, running the request here if no thread has picked it up yet
+             * (run() does nothing if it was started already).
+             */
+            Response getResponse() {
+                run();
+                try {
+                    Response r = get();
+                    if (r != null) {
+                        return r;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: Serve() failed for a pipelined request.");
+            }
+
+            /**
+             * Drop the response, because the connection is closed before its turn. A response that has
+             * been built already may hold an open file, it is closed now, or when it is built later.
+             */
+            void discard() {
+                synchronized (this) {
+                    discarded = true;
+                }
+                if (!cancel(false) && isDone()) {
+                    try {
+                        closeData(get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        // No response to close.
+                    }
+                }
+            }
+
+            @Override
+            protected void set(Response r) {
+                synchronized (this) {
+                    if (discarded) {
+                        closeData(r);
+                    } else {
+                        super.set(r);
+                    }
+                }
+            }
+
+            private void closeData(Response r) {
+                if (r != null) {
+                    safeClose(r.getData());
+                }
+            }
+        }
+    }
+
+    /**
+     * Header names that are sent by most browsers, so the lowercase name does not have to be created
+     * for every request.
+     */
+    private static final String[] COMMON_HEADER_NAMES = {"host", "connection", "user-agent", "accept", "accept-encoding",
+            "accept-language", "referer", "cookie", "cache-control", "pragma", "if-none-match", "if-modified-since",
+            "range", "if-range", "content-length", "content-type", "dnt", "upgrade-insecure-requests"};
+
+    private static int findLineEnd(byte[] buf, int start, int end) {
+        int index = indexOf(buf, start, end, '\n');
+        return index >= 0 ? index : end;
+    }
+
+    private static int indexOf(byte[] buf, int start, int end, char value) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] buf, int start, int end) {
+        while (start < end && (buf[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int findWhitespace(byte[] buf, int start, int end) {
+        while (start < end && (buf[start] & 0xff) > ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(byte[] buf, int start, int end) {
+        while (end > start && (buf[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Create a header name, in lowercase.
+     */
+    private static String toHeaderName(byte[] buf, int start, int end) {
+        int length = end - start;
+        for (String name : COMMON_HEADER_NAMES) {
+            if (name.length() == length && regionMatchesIgnoreCase(buf, start, name)) {
+                return name;
+            }
+        }
+        return toHeaderString(buf, start, end).toLowerCase(Locale.US);
+    }
+
+    /**
+     * Create a String from header bytes. Headers are nearly always plain ASCII, that is copied
+     * directly, anything else is decoded with the platform charset.
+     */
+    private static String toHeaderString(byte[] buf, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            if (buf[i] < 0) {
+                return new String(buf, start, end - start);
+            }
+            chars[i - start] = (char) buf[i];
         }
+        return new String(chars);
     }
 
     public static class Cookie {
@@ -0,0 +1,152 @@
+package com.sanderbos.simplephotowebserver.platform.jvm;
+
+import com.sanderbos.simplephotowebserver.platform.ResourceProvider;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Resource provider that reads the resources of the app from the class path (the values and
+ * drawable directories of the app resources). The string resources are resolved the way Android
+ * resolves them, so the HTML and CSS are the same as those served by the app.
+ */
+public class ClasspathResourceProvider implements ResourceProvider {
+
+    /**
+     * The files with the string resources.
+     */
+    private static final String[] STRING_RESOURCE_FILES = {"/values/strings.xml", "/values/html_fragments.xml"};
+
+    /**
+     * The resolved string resources by name.
+     */
+    private final Map<String, String> texts = new HashMap<>();
+
+    /**
+     * The resources do not change while the server runs, so the start time is a valid version.
+     */
+    private final long resourceVersion = System.currentTimeMillis();
+
+    /**
+     * Constructor, reads all string resources.
+     *
+     * @throws IOException In case the string resources cannot be read.
+     */
+    public ClasspathResourceProvider() throws IOException {
+        for (String resourceFile : STRING_RESOURCE_FILES) {
+            readStringResources(resourceFile);
+        }
+    }
+
+    @Override
+    public String getText(String name) {
+        String result = texts.get(name);
+        if (result == null) {
+            throw new IllegalArgumentException("No string resource " + name);
+        }
+        return result;
+    }
+
+    @Override
+    public InputStream openDrawable(String name) throws IOException {
+        InputStream result = getClass().getResourceAsStream("/drawable/" + name + ".png");
+        if (result == null) {
+            throw new FileNotFoundException("No drawable " + name);
+        }
+        return result;
+    }
+
+    @Override
+    public long getResourceVersion() {
+        return resourceVersion;
+    }
+
+    /**
+     * Read the string resources of a resource file.
+     *
+     * @param resourceFile The path of the resource file on the class path.
+     * @throws IOException In case the file cannot be read or parsed.
+     */
+    private void readStringResources(String resourceFile) throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream(resourceFile);
+        if (inputStream == null) {
+            throw new FileNotFoundException("No resource file " + resourceFile);
+        }
+        try {
+            DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            NodeList strings = documentBuilder.parse(inputStream).getElementsByTagName("string");
+            for (int index = 0; index < strings.getLength(); index++) {
+                Element string = (Element) strings.item(index);
+                texts.put(string.getAttribute("name"), resolveText(string.getTextContent()));
+            }
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Failed to parse " + resourceFile, e);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Resolve the text of a string resource like Android does: white space outside double quotes
+     * is collapsed to a single space and trimmed, double quotes are removed, and escapes are
+     * replaced by the characters they stand for.
+     *
+     * @param rawText The text as it is in the resource file.
+     * @return The resolved text.
+     */
+    private static String resolveText(String rawText) {
+        StringBuilder result = new StringBuilder(rawText.length());
+        boolean quoted = false;
+        boolean pendingSpace = false;
+        for (int index = 0; index < rawText.length(); index++) {
+            char character = rawText.charAt(index);
+            if (!quoted && Character.isWhitespace(character)) {
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace) {
+                if (result.length() > 0) {
+                    result.append(' ');
+                }
+                pendingSpace = false;
+            }
+            if (character == '"') {
+                quoted = !quoted;
+            } else if (character == '\\' && index + 1 < rawText.length()) {
+                index++;
+                char escaped = rawText.charAt(index);
+                switch (escaped) {
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 't':
+                        result.append('\t');
+                        break;
+                    case 'u':
+                        if (index + 4 < rawText.length()) {
+                            result.append((char) Integer.parseInt(rawText.substring(index + 1, index + 5), 16));
+                            index += 4;
+                        }
+                        break;
+                    default:
+                        result.append(escaped);
+                        break;
+                }
+            } else {
+                result.append(character);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,46 @@
+package com.sanderbos.simplephotowebserver.platform.jvm;
+
+import com.sanderbos.simplephotowebserver.platform.LogWriter;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Log writer to the standard error stream, with a minimum level (under load the debug messages
+ * would slow down the server being measured).
+ */
+public class ConsoleLogWriter implements LogWriter {
+
+    /**
+     * Names of the log levels, by level.
+     */
+    private static final String[] LEVEL_NAMES = {"", "", "", "DEBUG", "INFO", "WARNING", "ERROR"};
+
+    /**
+     * Messages below this level are not written.
+     */
+    private final int minimumLevel;
+
+    /**
+     * Constructor.
+     *
+     * @param minimumLevel Messages below this level are not written.
+     */
+    public ConsoleLogWriter(int minimumLevel) {
+        this.minimumLevel = minimumLevel;
+    }
+
+    @Override
+    public void write(int level, String tag, String message, Throwable throwable) {
+        if (level < minimumLevel) {
+            return;
+        }
+        String time = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date());
+        synchronized (System.err) {
+            System.err.println(time + " " + LEVEL_NAMES[level] + " [" + Thread.currentThread().getName() + "] " + message);
+            if (throwable != null) {
+                throwable.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.sanderbos.simplephotowebserver.platform.jvm;
+
+import com.sanderbos.simplephotowebserver.platform.MediaIndex;
+import com.sanderbos.simplephotowebserver.util.MediaDirectoryFilter;
+import com.sanderbos.simplephotowebserver.util.MyLog;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Media index that walks the file system below a number of root directories. There is no
+ * thumbnail database, so the server generates all thumbnails itself.
+ */
+public class FileSystemMediaIndex implements MediaIndex {
+
+    /**
+     * List of file extensions of media files (images and videos, like the media store).
+     */
+    private static final Set<String> MEDIA_EXTENSIONS = new HashSet<>();
+
+    static {
+        MEDIA_EXTENSIONS.add("jpg");
+        MEDIA_EXTENSIONS.add("jpeg");
+        MEDIA_EXTENSIONS.add("png");
+        MEDIA_EXTENSIONS.add("gif");
+        MEDIA_EXTENSIONS.add("mp4");
+        MEDIA_EXTENSIONS.add("3gp");
+    }
+
+    /**
+     * The directories to search for media.
+     */
+    private final List<File> rootDirectories;
+
+    /**
+     * Constructor.
+     *
+     * @param rootDirectories The directories to search for media (including their sub directories).
+     */
+    public FileSystemMediaIndex(List<File> rootDirectories) {
+        this.rootDirectories = rootDirectories;
+    }
+
+    @Override
+    public void retrieveAllMediaDirectories(Set<String> foundDirectories) {
+        for (File rootDirectory : rootDirectories) {
+            if (rootDirectory.isDirectory()) {
+                addMediaDirectories(rootDirectory, foundDirectories);
+            } else {
+                MyLog.warning("Media directory " + rootDirectory + " does not exist");
+            }
+        }
+    }
+
+    @Override
+    public String findThumbnailPath(String imagePath) {
+        return null;
+    }
+
+    /**
+     * Add a directory and its sub directories in case they contain media files.
+     *
+     * @param directory        The directory to check.
+     * @param foundDirectories The set to add the media directories to (full path).
+     */
+    private void addMediaDirectories(File directory, Set<String> foundDirectories) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        MediaDirectoryFilter directoryFilter = new MediaDirectoryFilter();
+        for (File file : files) {
+            if (directoryFilter.accept(file)) {
+                addMediaDirectories(file, foundDirectories);
+            } else if (file.isFile() && isMediaFile(file)) {
+                foundDirectories.add(directory.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Check whether a file is a media file, based on its extension.
+     *
+     * @param file The file to check.
+     * @return True in case the file extension is of a media type, false otherwise.
+     */
+    private static boolean isMediaFile(File file) {
+        int dotLocation = file.getName().lastIndexOf('.');
+        return dotLocation != -1 && MEDIA_EXTENSIONS.contains(file.getName().substring(dotLocation + 1).toLowerCase());
+    }
+}
@@ -0,0 +1,52 @@
+package com.sanderbos.simplephotowebserver.platform.jvm;
+
+import com.sanderbos.simplephotowebserver.InternalPhotoWebServer;
+import com.sanderbos.simplephotowebserver.platform.LogWriter;
+import com.sanderbos.simplephotowebserver.util.MyImageUtil;
+import com.sanderbos.simplephotowebserver.util.MyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the photo web server without Android, on a regular JVM, serving the media below the given
+ * directories. Meant for load testing and profiling the server on a workstation.
+ * <br>
+ * Usage: HeadlessPhotoWebServer &lt;port&gt; &lt;media directory&gt;... (set the system property
+ * photows.debug to true to include debug messages in the log).
+ */
+public class HeadlessPhotoWebServer {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: HeadlessPhotoWebServer <port> <media directory>...");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        List<File> mediaDirectories = new ArrayList<>();
+        for (int index = 1; index < args.length; index++) {
+            mediaDirectories.add(new File(args[index]).getAbsoluteFile());
+        }
+
+        MyLog.setLogWriter(new ConsoleLogWriter(Boolean.getBoolean("photows.debug") ? LogWriter.DEBUG : LogWriter.INFO));
+        MyImageUtil.setImageCodec(new ImageIOCodec());
+
+        final InternalPhotoWebServer server = new InternalPhotoWebServer(port, new ClasspathResourceProvider(),
+                new FileSystemMediaIndex(mediaDirectories));
+        server.start();
+        MyLog.info("Serving {0} on port {1,number,#}", mediaDirectories, port);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        // The server threads are daemon threads, keep the JVM running until it is stopped.
+        while (server.isAlive()) {
+            Thread.sleep(1000);
+        }
+    }
+}
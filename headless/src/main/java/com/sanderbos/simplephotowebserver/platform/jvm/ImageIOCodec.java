@@ -0,0 +1,167 @@
+package com.sanderbos.simplephotowebserver.platform.jvm;
+
+import com.sanderbos.simplephotowebserver.platform.ImageCodec;
+import com.sanderbos.simplephotowebserver.util.DecodePlan;
+import com.sanderbos.simplephotowebserver.util.ImageOrientation;
+import com.sanderbos.simplephotowebserver.util.MyLog;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Image codec based on javax.imageio and Java 2D.
+ */
+public class ImageIOCodec implements ImageCodec<BufferedImage> {
+
+    /**
+     * Quality to use for converted images (the same as on Android).
+     */
+    private static final float JPEG_COMPRESSION_QUALITY = 0.8f;
+
+    /**
+     * Memory used per pixel by decoded and converted images (at most, JPEG images decode to 3 bytes per
+     * pixel, but converted images always use 4).
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    @Override
+    public int getBytesPerPixel(boolean opaque) {
+        return BYTES_PER_PIXEL;
+    }
+
+    @Override
+    public BufferedImage decode(byte[] imageData, DecodePlan decodePlan) throws IOException {
+        ImageReader reader = openReader(new ByteArrayInputStream(imageData), "image data");
+        try {
+            // Skips pixels on reading, the image reader decides the pixel format by itself.
+            ImageReadParam readParam = reader.getDefaultReadParam();
+            readParam.setSourceSubsampling(decodePlan.getSampleSize(), decodePlan.getSampleSize(), 0, 0);
+            return reader.read(0, readParam);
+        } finally {
+            closeReader(reader);
+        }
+    }
+
+    @Override
+    public BufferedImage scaleToWidth(BufferedImage image, int width) {
+        int scaledHeight = Math.max(1, (int) (width / ((double) image.getWidth() / (double) image.getHeight())));
+        BufferedImage scaledImage = new BufferedImage(width, scaledHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaledImage.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, scaledHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaledImage;
+    }
+
+    @Override
+    public BufferedImage rotate(BufferedImage image, ImageOrientation rotation) {
+        int degrees = rotation.getRotationInDegrees();
+        boolean quarterTurn = degrees % 180 != 0;
+        int width = quarterTurn ? image.getHeight() : image.getWidth();
+        int height = quarterTurn ? image.getWidth() : image.getHeight();
+
+        AffineTransform transform = new AffineTransform();
+        transform.translate(width / 2.0, height / 2.0);
+        transform.rotate(Math.toRadians(degrees));
+        transform.translate(-image.getWidth() / 2.0, -image.getHeight() / 2.0);
+
+        BufferedImage rotatedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rotatedImage.createGraphics();
+        try {
+            graphics.drawImage(image, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+        MyLog.debug("Image rotated to size {0,number,#} by {1,number,#}", width, height);
+        return rotatedImage;
+    }
+
+    @Override
+    public byte[] encodeJPG(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream jpegImageOutputStream = new ByteArrayOutputStream();
+        ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(jpegImageOutputStream);
+        try {
+            ImageWriteParam writeParam = writer.getDefaultWriteParam();
+            writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParam.setCompressionQuality(JPEG_COMPRESSION_QUALITY);
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+        } finally {
+            imageOutputStream.close();
+            writer.dispose();
+        }
+        return jpegImageOutputStream.toByteArray();
+    }
+
+    @Override
+    public void recycle(BufferedImage image) {
+        // Nothing to do, the garbage collector takes care of it.
+    }
+
+    @Override
+    public String getStatistics() {
+        return "";
+    }
+
+    @Override
+    public int[] getDimensions(String pathToImage) throws IOException {
+        ImageReader reader = openReader(new File(pathToImage), pathToImage);
+        try {
+            // Only reads the header, the image is not decoded.
+            return new int[]{reader.getWidth(0), reader.getHeight(0)};
+        } finally {
+            closeReader(reader);
+        }
+    }
+
+    /**
+     * Open an image reader.
+     *
+     * @param input       The image file or stream to read.
+     * @param description Description of the input, for errors.
+     * @return A reader with the image as input, to be closed with {@link #closeReader(ImageReader)}.
+     * @throws IOException In case the input cannot be opened, or its format is not supported.
+     */
+    private ImageReader openReader(Object input, String description) throws IOException {
+        ImageInputStream imageInputStream = ImageIO.createImageInputStream(input);
+        if (imageInputStream == null) {
+            throw new IOException("Cannot open " + description);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+        if (!readers.hasNext()) {
+            imageInputStream.close();
+            throw new IOException("Unsupported image format: " + description);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(imageInputStream, true, true);
+        return reader;
+    }
+
+    private void closeReader(ImageReader reader) throws IOException {
+        try {
+            ((ImageInputStream) reader.getInput()).close();
+        } finally {
+            reader.dispose();
+        }
+    }
+}